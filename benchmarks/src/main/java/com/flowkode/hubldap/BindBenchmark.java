@@ -0,0 +1,28 @@
+package com.flowkode.hubldap;
+
+import org.apache.directory.server.core.api.CoreSession;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Binds through the directory service, so the request passes the AuthenticationInterceptor and reaches HubAutenticator.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BindBenchmark {
+
+    private static final byte[] PASSWORD = FakeHubClient.PASSWORD.getBytes(StandardCharsets.UTF_8);
+
+    @Benchmark
+    @Threads(4)
+    public CoreSession bind(HubLdapState state) throws Exception {
+        final int user = ThreadLocalRandom.current().nextInt(state.users);
+        return state.hubLdap.getDirectoryService().getSession(DirectoryBenchmark.userDn(state, user), PASSWORD);
+    }
+}
@@ -0,0 +1,145 @@
+package com.flowkode.hubldap;
+
+import com.flowkode.hubldap.data.User;
+import org.apache.directory.api.ldap.model.cursor.Cursor;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.filter.ExprNode;
+import org.apache.directory.api.ldap.model.filter.FilterParser;
+import org.apache.directory.api.ldap.model.message.AliasDerefMode;
+import org.apache.directory.api.ldap.model.message.SearchScope;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.server.core.api.CoreSession;
+import org.apache.directory.server.core.api.DirectoryService;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DirectoryBenchmark {
+
+    /**
+     * Random users and groups drawn once per iteration, a per invocation setup would cost more than the calls measured.
+     */
+    @State(Scope.Thread)
+    public static class Target {
+
+        private static final int SIZE = 1024;
+
+        private final int[] users = new int[SIZE];
+
+        private final Dn[] userDns = new Dn[SIZE];
+
+        private final int[] groups = new int[SIZE];
+
+        private int nextUser;
+
+        private int nextGroup;
+
+        @Setup(Level.Iteration)
+        public void fill(HubLdapState state) throws Exception {
+            for (int i = 0; i < SIZE; i++) {
+                users[i] = ThreadLocalRandom.current().nextInt(state.users);
+                userDns[i] = DirectoryBenchmark.userDn(state, users[i]);
+                groups[i] = ThreadLocalRandom.current().nextInt(state.groups);
+            }
+        }
+
+        int user() {
+            return users[nextUser++ & (SIZE - 1)];
+        }
+
+        Dn userDn() {
+            return userDns[nextUser++ & (SIZE - 1)];
+        }
+
+        int group() {
+            return groups[nextGroup++ & (SIZE - 1)];
+        }
+    }
+
+    @Benchmark
+    public Directory.Change addUserWithManyGroups(HubLdapState state, Target target) {
+        final int index = target.user();
+        final User user = state.hubClient.getAllUsers()[index];
+        //50 groups regardless of what the user had, so the entry is rewritten
+        final Set<String> groups = IntStream.range(0, 50)
+                                            .mapToObj(k -> FakeHubClient.groupId((index + k) % state.groups))
+                                            .collect(Collectors.toSet());
+        return state.directory.addUser(user.getName(), user.getId(), user.getLogin() + "@example.com", user.getLogin(), groups, Collections.emptySet());
+    }
+
+    @Benchmark
+    public void resolveGroups(HubLdapState state, Target target, Blackhole blackhole) {
+        final int index = target.user();
+        for (int k = 0; k < 50; k++) {
+            blackhole.consume(state.directory.findGroup(FakeHubClient.groupId((index + k) % state.groups)));
+        }
+    }
+
+    @Benchmark
+    public void resolveGroupsBySearch(HubLdapState state, Target target, Blackhole blackhole) throws Exception {
+        //how addUser found each group before the group dn index, one partition search per group
+        final int index = target.user();
+        for (int k = 0; k < 50; k++) {
+            search(state, "(&(objectClass=groupOfNames)(description=" + FakeHubClient.groupId((index + k) % state.groups) + "))", 1, blackhole);
+        }
+    }
+
+    @Benchmark
+    public Dn findGroup(HubLdapState state, Target target) {
+        return state.directory.findGroup(FakeHubClient.groupId(target.group()));
+    }
+
+    @Benchmark
+    public String getUsername(HubLdapState state, Target target) {
+        return state.directory.getUsername(target.userDn());
+    }
+
+    @Benchmark
+    public void searchPersonByUid(HubLdapState state, Target target, Blackhole blackhole) throws Exception {
+        search(state, "(&(objectClass=person)(uid=" + FakeHubClient.login(target.user()) + "))", 1, blackhole);
+    }
+
+    @Benchmark
+    public void searchByMemberOf(HubLdapState state, Target target, Blackhole blackhole) throws Exception {
+        final int group = target.group();
+        search(state, "(memberOf=cn=" + FakeHubClient.groupName(group) + ",ou=Groups,dc=hub,dc=local)", state.groupSizes[group], blackhole);
+    }
+
+    @Benchmark
+    public void searchGroupByDescription(HubLdapState state, Target target, Blackhole blackhole) throws Exception {
+        //what DirectoryImpl.findGroup falls back to
+        search(state, "(&(objectClass=groupOfNames)(description=" + FakeHubClient.groupId(target.group()) + "))", 1, blackhole);
+    }
+
+    private static void search(HubLdapState state, String filter, int expected, Blackhole blackhole) throws Exception {
+        final DirectoryService directoryService = state.hubLdap.getDirectoryService();
+        final CoreSession session = directoryService.getAdminSession();
+        //search(Dn, String) only looks at the base entry itself
+        final ExprNode node = FilterParser.parse(directoryService.getSchemaManager(), filter);
+        int found = 0;
+        try (Cursor<Entry> cursor = session.search(new Dn("dc=hub,dc=local"), SearchScope.SUBTREE, node, AliasDerefMode.NEVER_DEREF_ALIASES)) {
+            while (cursor.next()) {
+                blackhole.consume(cursor.get());
+                found++;
+            }
+        }
+        if (found != expected) {
+            throw new IllegalStateException(filter + " returned " + found + " entries, expected " + expected);
+        }
+    }
+
+    static Dn userDn(HubLdapState state, int user) throws Exception {
+        return state.hubLdap.getDirectoryService().getDnFactory().create("cn=" + FakeHubClient.userName(user) + ",ou=Users,dc=hub,dc=local");
+    }
+}
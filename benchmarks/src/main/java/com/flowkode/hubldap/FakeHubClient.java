@@ -0,0 +1,117 @@
+package com.flowkode.hubldap;
+
+import com.flowkode.hubldap.data.*;
+import com.google.gson.Gson;
+import okhttp3.MediaType;
+import okhttp3.ResponseBody;
+import retrofit2.Call;
+import retrofit2.Response;
+import retrofit2.mock.Calls;
+
+import java.util.Arrays;
+
+/**
+ * In process {@link HubClient} serving a generated dataset, every user logs in with {@link #PASSWORD}.
+ */
+public class FakeHubClient implements HubClient {
+
+    public static final String PASSWORD = "secret";
+
+    private static final MediaType JSON = MediaType.get("application/json");
+
+    private final Gson gson = new Gson();
+
+    private final User[] users;
+
+    private final UserGroup[] groups;
+
+    public FakeHubClient(int userCount, int groupCount, int groupsPerUser) {
+        groups = new UserGroup[groupCount];
+        for (int g = 0; g < groupCount; g++) {
+            groups[g] = new UserGroup(groupId(g), groupName(g));
+        }
+        users = new User[userCount];
+        for (int u = 0; u < userCount; u++) {
+            final UserGroup[] userGroups = new UserGroup[Math.min(groupsPerUser, groupCount)];
+            for (int k = 0; k < userGroups.length; k++) {
+                userGroups[k] = groups[(u * 7 + k) % groupCount];
+            }
+            users[u] = new User(userId(u), userName(u), login(u), false, new Profile(new Email(login(u) + "@example.com")), userGroups);
+        }
+    }
+
+    public static String userId(int u) {
+        return "user-id-" + u;
+    }
+
+    public static String userName(int u) {
+        return "User " + u;
+    }
+
+    public static String login(int u) {
+        return "user" + u;
+    }
+
+    public static String groupId(int g) {
+        return "group-id-" + g;
+    }
+
+    public static String groupName(int g) {
+        return "Group " + g;
+    }
+
+    public User[] getAllUsers() {
+        return users;
+    }
+
+    public UserGroup[] getAllGroups() {
+        return groups;
+    }
+
+    @Override
+    public Call<UserGroupsResponse> getUserGroups(String authorization, String fields, int start, int limit) {
+        return Calls.response(new UserGroupsResponse(start, limit, groups.length, page(groups, start, limit)));
+    }
+
+    @Override
+    public Call<UsersResponse> getUsers(String authorization, String fields, int start, int limit) {
+        return Calls.response(new UsersResponse(start, limit, users.length, page(users, start, limit)));
+    }
+
+    @Override
+    public Call<ResponseBody> streamUsers(String authorization, String fields, int start, int limit) {
+        return Calls.response(ResponseBody.create(JSON, gson.toJson(new UsersResponse(start, limit, users.length, page(users, start, limit)))));
+    }
+
+    @Override
+    public Call<AuthResponse> userLogin(String authorization, String scope, String grantType, String username, String password) {
+        if (PASSWORD.equals(password)) {
+            return Calls.response(new AuthResponse("user-token", 3600));
+        }
+        return Calls.response(Response.error(401, ResponseBody.create(null, "")));
+    }
+
+    @Override
+    public Call<AuthResponse> serviceLogin(String credentials, String scope, String grantType) {
+        return Calls.response(new AuthResponse("service-token", 3600));
+    }
+
+    @Override
+    public Call<User> getUser(String credentials, String userId) {
+        return Calls.response(Arrays.stream(users).filter(u -> u.getId().equals(userId)).findFirst().orElse(null));
+    }
+
+    @Override
+    public Call<UserGroup> getUserGroup(String credentials, String groupId) {
+        return Calls.response(Arrays.stream(groups).filter(g -> g.getId().equals(groupId)).findFirst().orElse(null));
+    }
+
+    @Override
+    public Call<SshKeysResponse> getUserKeys(String authorization, String userId, int start, int limit) {
+        return Calls.response(new SshKeysResponse(start, limit, 0, new SshKey[0]));
+    }
+
+    private static <T> T[] page(T[] items, int start, int limit) {
+        return Arrays.copyOfRange(items, Math.min(start, items.length), Math.min(start + limit, items.length));
+    }
+}
@@ -0,0 +1,194 @@
+package com.flowkode.hubldap;
+
+import com.flowkode.hubldap.data.SshKey;
+import com.flowkode.hubldap.data.SshKeysResponse;
+import com.google.gson.Gson;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import retrofit2.Response;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Local stand-in for the Hub REST API, serving the {@link FakeHubClient} dataset under {@code http://127.0.0.1:<port>/hub}.
+ * <p>
+ * Every request is delayed by {@code latencyMs} and fails with a 503 with probability {@code errorRate}.
+ */
+public class FakeHubServer {
+
+    private static final String PREFIX = "/hub/api/rest/";
+
+    private final Gson gson = new Gson();
+
+    private final FakeHubClient data;
+
+    private final long latencyMillis;
+
+    private final double errorRate;
+
+    private final int port;
+
+    private HttpServer server;
+
+    private ExecutorService executor;
+
+    public FakeHubServer(int port, FakeHubClient data, long latencyMillis, double errorRate) {
+        this.port = port;
+        this.data = data;
+        this.latencyMillis = latencyMillis;
+        this.errorRate = errorRate;
+    }
+
+    public static void main(String[] args) throws Exception {
+        final Properties options = parse(args);
+        final FakeHubServer server = new FakeHubServer(
+                Integer.parseInt(options.getProperty("port", "8080")),
+                new FakeHubClient(
+                        Integer.parseInt(options.getProperty("users", "20000")),
+                        Integer.parseInt(options.getProperty("groups", "200")),
+                        Integer.parseInt(options.getProperty("groupsPerUser", "20"))
+                ),
+                Long.parseLong(options.getProperty("latencyMs", "0")),
+                Double.parseDouble(options.getProperty("errorRate", "0"))
+        );
+        server.start();
+        System.out.println("Fake Hub listening on " + server.getUrl());
+    }
+
+    /**
+     * Reads {@code --name=value} arguments.
+     */
+    static Properties parse(String[] args) {
+        final Properties options = new Properties();
+        for (String arg : args) {
+            final int split = arg.indexOf('=');
+            if (!arg.startsWith("--") || split < 0) {
+                throw new IllegalArgumentException("Expected --name=value but got: " + arg);
+            }
+            options.setProperty(arg.substring(2, split), arg.substring(split + 1));
+        }
+        return options;
+    }
+
+    public String getUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/hub";
+    }
+
+    public void start() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+        executor = Executors.newFixedThreadPool(64);
+        server.setExecutor(executor);
+        server.createContext(PREFIX, exchange -> {
+            try {
+                handle(exchange);
+            }
+            catch (Exception e) {
+                send(exchange, 500, "{\"error\":\"" + e.getClass().getSimpleName() + "\"}");
+            }
+            finally {
+                exchange.close();
+            }
+        });
+        server.start();
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws Exception {
+        if (latencyMillis > 0) {
+            Thread.sleep(latencyMillis);
+        }
+        if (errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate) {
+            send(exchange, 503, "{\"error\":\"injected\"}");
+            return;
+        }
+
+        final String path = exchange.getRequestURI().getPath().substring(PREFIX.length());
+        final Map<String, String> query = decode(exchange.getRequestURI().getRawQuery());
+        final int skip = Integer.parseInt(query.getOrDefault("$skip", "0"));
+        final int top = Integer.parseInt(query.getOrDefault("$top", "100"));
+        final String[] parts = path.split("/");
+
+        if (path.equals("oauth2/token")) {
+            final Map<String, String> form = decode(readBody(exchange.getRequestBody()));
+            if ("client_credentials".equals(form.get("grant_type"))) {
+                reply(exchange, data.serviceLogin(null, null, null).execute());
+            }
+            else {
+                reply(exchange, data.userLogin(null, null, null, form.get("username"), form.get("password")).execute());
+            }
+        }
+        else if (path.equals("users")) {
+            reply(exchange, data.getUsers(null, null, skip, top).execute());
+        }
+        else if (path.equals("usergroups")) {
+            reply(exchange, data.getUserGroups(null, null, skip, top).execute());
+        }
+        else if (parts.length == 3 && parts[0].equals("users") && parts[2].equals("sshpublickeys")) {
+            final SshKey key = new SshKey("SHA256:" + parts[1], "AAAAC3NzaC1lZDI1NTE5", "ssh-ed25519 AAAAC3NzaC1lZDI1NTE5" + parts[1] + " " + parts[1], parts[1]);
+            send(exchange, 200, gson.toJson(new SshKeysResponse(skip, top, 1, skip == 0 ? new SshKey[]{key} : new SshKey[0])));
+        }
+        else if (parts.length == 2 && parts[0].equals("users")) {
+            reply(exchange, data.getUser(null, parts[1]).execute());
+        }
+        else if (parts.length == 2 && parts[0].equals("usergroups")) {
+            reply(exchange, data.getUserGroup(null, parts[1]).execute());
+        }
+        else {
+            send(exchange, 404, "{\"error\":\"not found\"}");
+        }
+    }
+
+    private void reply(HttpExchange exchange, Response<?> response) throws IOException {
+        if (!response.isSuccessful()) {
+            send(exchange, response.code(), "{\"error\":\"rejected\"}");
+        }
+        else if (response.body() == null) {
+            send(exchange, 404, "{\"error\":\"not found\"}");
+        }
+        else {
+            send(exchange, 200, gson.toJson(response.body()));
+        }
+    }
+
+    private static void send(HttpExchange exchange, int code, String body) throws IOException {
+        final byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(code, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static String readBody(InputStream in) throws IOException {
+        return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+    }
+
+    private static Map<String, String> decode(String encoded) {
+        final Map<String, String> values = new HashMap<>();
+        if (encoded == null || encoded.isEmpty()) {
+            return values;
+        }
+        for (String pair : encoded.split("&")) {
+            final int split = pair.indexOf('=');
+            final String name = URLDecoder.decode(split < 0 ? pair : pair.substring(0, split), StandardCharsets.UTF_8);
+            final String value = split < 0 ? "" : URLDecoder.decode(pair.substring(split + 1), StandardCharsets.UTF_8);
+            values.put(name, value);
+        }
+        return values;
+    }
+}
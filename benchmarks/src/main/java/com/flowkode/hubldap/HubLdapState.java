@@ -0,0 +1,110 @@
+package com.flowkode.hubldap;
+
+import com.flowkode.hubldap.data.User;
+import com.flowkode.hubldap.data.UserGroup;
+import org.apache.directory.api.util.FileUtils;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.stream.Collectors;
+
+/**
+ * A {@link HubLdap} whose hub partition holds {@code users} users, the LDAP server itself is never started.
+ */
+@State(Scope.Benchmark)
+public class HubLdapState {
+
+    @Param({"1000", "10000", "50000"})
+    public int users;
+
+    @Param({"0"})
+    public String bindCacheTtl;
+
+    @Param({"0"})
+    public String searchCacheMaxEntries;
+
+    //"default" keeps the shipped indexedAttributes, "none" indexes nothing, anything else is used as is
+    @Param({"default"})
+    public String indexes;
+
+    public int groups;
+
+    //members of each group, what a memberOf search has to return
+    public int[] groupSizes;
+
+    public HubLdap hubLdap;
+
+    public Directory directory;
+
+    public FakeHubClient hubClient;
+
+    private Path workDir;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        groups = Math.max(50, users / 100);
+        hubClient = new FakeHubClient(users, groups, 20);
+
+        workDir = Files.createTempDirectory("hubldap-bench");
+        hubLdap = create(workDir.resolve("work"));
+        directory = hubLdap.getDirectory();
+
+        final Map<String, Set<String>> members = new HashMap<>();
+        for (User user : hubClient.getAllUsers()) {
+            for (UserGroup group : user.getGroups()) {
+                members.computeIfAbsent(group.getId(), k -> new HashSet<>()).add(user.getName());
+            }
+        }
+        groupSizes = new int[groups];
+        for (int g = 0; g < groups; g++) {
+            groupSizes[g] = members.getOrDefault(FakeHubClient.groupId(g), Collections.emptySet()).size();
+        }
+        for (UserGroup group : hubClient.getAllGroups()) {
+            directory.addGroup(group.getName(), group.getId(), members.getOrDefault(group.getId(), Collections.emptySet()));
+        }
+        for (User user : hubClient.getAllUsers()) {
+            directory.addUser(user.getName(), user.getId(), user.getLogin() + "@example.com", user.getLogin(), groupIds(user), Collections.emptySet());
+        }
+        directory.publish();
+    }
+
+    /**
+     * A {@link HubLdap} on the same snapshot file, so one created after {@link #setUp()} warm starts from its data.
+     */
+    public HubLdap create(Path instanceDir) throws Exception {
+        final Properties config = new Properties();
+        config.setProperty("schema", "classpath");
+        config.setProperty("metricsJmx", "false");
+        config.setProperty("bindCacheTtl", bindCacheTtl);
+        config.setProperty("searchCacheMaxEntries", searchCacheMaxEntries);
+        if (!indexes.equals("default")) {
+            config.setProperty("indexedAttributes", indexes.equals("none") ? "" : indexes);
+        }
+        return new HubLdap(
+                "hub.local",
+                "admin",
+                instanceDir,
+                workDir.resolve("hub.snapshot"),
+                hubClient,
+                new HubTrafficCounter(),
+                "service",
+                "secret",
+                workDir.resolve("keystore.p12"),
+                "secret",
+                config,
+                new Metrics()
+        );
+    }
+
+    public static Set<String> groupIds(User user) {
+        return Arrays.stream(user.getGroups()).map(UserGroup::getId).collect(Collectors.toSet());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        hubLdap.getDirectoryService().shutdown();
+        FileUtils.deleteDirectory(workDir.toFile());
+    }
+}
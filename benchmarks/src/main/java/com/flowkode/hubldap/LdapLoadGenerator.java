@@ -0,0 +1,193 @@
+package com.flowkode.hubldap;
+
+import org.apache.directory.api.ldap.model.cursor.EntryCursor;
+import org.apache.directory.api.ldap.model.message.SearchScope;
+import org.apache.directory.ldap.client.api.LdapNetworkConnection;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Opens many LDAP connections against a running HubLdap and mixes user binds with searches, then reports throughput and latency percentiles.
+ * <p>
+ * Users are expected to come from {@link FakeHubServer}, so their dn and password are known.
+ */
+public class LdapLoadGenerator {
+
+    private final String host;
+
+    private final int port;
+
+    private final int connections;
+
+    private final long durationMillis;
+
+    private final double bindRatio;
+
+    private final int users;
+
+    private final String rootDn;
+
+    private final String adminPassword;
+
+    public LdapLoadGenerator(String host, int port, int connections, long durationMillis, double bindRatio, int users, String rootDomain, String adminPassword) {
+        this.host = host;
+        this.port = port;
+        this.connections = connections;
+        this.durationMillis = durationMillis;
+        this.bindRatio = bindRatio;
+        this.users = users;
+        this.rootDn = "dc=" + Arrays.stream(rootDomain.split("\\.")).collect(Collectors.joining(",dc="));
+        this.adminPassword = adminPassword;
+    }
+
+    public static void main(String[] args) throws Exception {
+        final Properties options = FakeHubServer.parse(args);
+        new LdapLoadGenerator(
+                options.getProperty("host", "127.0.0.1"),
+                Integer.parseInt(options.getProperty("port", "10389")),
+                Integer.parseInt(options.getProperty("connections", "50")),
+                TimeUnit.SECONDS.toMillis(Long.parseLong(options.getProperty("duration", "30"))),
+                Double.parseDouble(options.getProperty("bindRatio", "0.5")),
+                Integer.parseInt(options.getProperty("users", "20000")),
+                options.getProperty("rootDomain", "hub.local"),
+                options.getProperty("adminPassword", "admin")
+        ).run();
+    }
+
+    public void run() throws InterruptedException {
+        final List<Worker> workers = new ArrayList<>();
+        final CountDownLatch done = new CountDownLatch(connections);
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(durationMillis);
+        for (int i = 0; i < connections; i++) {
+            final Worker worker = new Worker(deadline, done);
+            workers.add(worker);
+            final Thread thread = new Thread(worker, "ldap-load-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        done.await();
+
+        final Samples binds = new Samples();
+        final Samples searches = new Samples();
+        long errors = 0;
+        for (Worker worker : workers) {
+            binds.addAll(worker.binds);
+            searches.addAll(worker.searches);
+            errors += worker.errors;
+        }
+        final double seconds = durationMillis / 1000.0;
+        System.out.printf("connections=%d duration=%.0fs errors=%d%n", connections, seconds, errors);
+        report("bind", binds, seconds);
+        report("search", searches, seconds);
+    }
+
+    private static void report(String operation, Samples samples, double seconds) {
+        final long[] sorted = samples.sorted();
+        System.out.printf(
+                "%-6s ops=%d throughput=%.1f/s p50=%.2fms p99=%.2fms p999=%.2fms%n",
+                operation,
+                sorted.length,
+                sorted.length / seconds,
+                percentile(sorted, 0.5),
+                percentile(sorted, 0.99),
+                percentile(sorted, 0.999)
+        );
+    }
+
+    private static double percentile(long[] sorted, double percentile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        final int index = (int) Math.min(sorted.length - 1, Math.ceil(percentile * sorted.length) - 1);
+        return sorted[Math.max(0, index)] / 1e6;
+    }
+
+    private class Worker implements Runnable {
+
+        private final long deadline;
+
+        private final CountDownLatch done;
+
+        private final Samples binds = new Samples();
+
+        private final Samples searches = new Samples();
+
+        private long errors;
+
+        private Worker(long deadline, CountDownLatch done) {
+            this.deadline = deadline;
+            this.done = done;
+        }
+
+        @Override
+        public void run() {
+            try (LdapNetworkConnection connection = new LdapNetworkConnection(host, port)) {
+                connection.bind("uid=admin,ou=system", adminPassword);
+                final ThreadLocalRandom random = ThreadLocalRandom.current();
+                while (System.nanoTime() - deadline < 0) {
+                    final int user = random.nextInt(users);
+                    final long start = System.nanoTime();
+                    try {
+                        if (random.nextDouble() < bindRatio) {
+                            connection.bind("cn=" + FakeHubClient.userName(user) + ",ou=Users," + rootDn, FakeHubClient.PASSWORD);
+                            binds.add(System.nanoTime() - start);
+                        }
+                        else {
+                            try (EntryCursor cursor = connection.search(rootDn, "(&(objectClass=person)(uid=" + FakeHubClient.login(user) + "))", SearchScope.SUBTREE)) {
+                                while (cursor.next()) {
+                                    cursor.get();
+                                }
+                            }
+                            searches.add(System.nanoTime() - start);
+                        }
+                    }
+                    catch (Exception e) {
+                        errors++;
+                    }
+                }
+            }
+            catch (Exception e) {
+                errors++;
+            }
+            finally {
+                done.countDown();
+            }
+        }
+    }
+
+    /**
+     * Growable list of latencies in nanoseconds.
+     */
+    private static class Samples {
+
+        private long[] values = new long[1024];
+
+        private int size;
+
+        private void add(long value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        private void addAll(Samples other) {
+            for (int i = 0; i < other.size; i++) {
+                add(other.values[i]);
+            }
+        }
+
+        private long[] sorted() {
+            final long[] sorted = Arrays.copyOf(values, size);
+            Arrays.sort(sorted);
+            return sorted;
+        }
+    }
+}
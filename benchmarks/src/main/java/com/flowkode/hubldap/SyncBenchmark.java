@@ -0,0 +1,173 @@
+package com.flowkode.hubldap;
+
+import org.apache.directory.api.util.FileUtils;
+import org.openjdk.jmh.annotations.*;
+import retrofit2.Retrofit;
+import retrofit2.converter.gson.GsonConverterFactory;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One full sync into an empty directory, over HTTP against {@link FakeHubServer} so Hub latency is part of the picture.
+ * <p>
+ * Next to the wall time, the users phase and the busy time of each of its stages are reported, stages running on
+ * several threads report their time summed over those threads. {@code -p groups=1 -p groupsPerUser=1} puts every user
+ * in one large group, {@code groupWrites} then shows it is written once, and not at all with {@code -p resync=true}
+ * where the directory already holds what Hub returns.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SyncBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Hub {
+
+        @Param({"20000"})
+        public int users;
+
+        @Param({"200"})
+        public int groups;
+
+        @Param({"20"})
+        public int groupsPerUser;
+
+        @Param({"5"})
+        public long latencyMs;
+
+        public FakeHubServer server;
+
+        @Setup(Level.Trial)
+        public void start() throws Exception {
+            server = new FakeHubServer(0, new FakeHubClient(users, groups, groupsPerUser), latencyMs, 0);
+            server.start();
+        }
+
+        @TearDown(Level.Trial)
+        public void stop() {
+            server.stop();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Sync {
+
+        @Param({"2"})
+        public String syncFetchThreads;
+
+        @Param({"2"})
+        public String syncKeyThreads;
+
+        @Param({"2"})
+        public String syncBuildThreads;
+
+        @Param({"8"})
+        public String keyFetchConcurrency;
+
+        //sync once before measuring, so the measured sync finds nothing to change
+        @Param({"false"})
+        public boolean resync;
+
+        public HubLdap hubLdap;
+
+        private Path workDir;
+
+        @Setup(Level.Invocation)
+        public void setUp(Hub hub) throws Exception {
+            workDir = Files.createTempDirectory("hubldap-sync-bench");
+            final Properties config = new Properties();
+            config.setProperty("schema", "classpath");
+            config.setProperty("metricsJmx", "false");
+            config.setProperty("syncFetchThreads", syncFetchThreads);
+            config.setProperty("syncKeyThreads", syncKeyThreads);
+            config.setProperty("syncBuildThreads", syncBuildThreads);
+            config.setProperty("keyFetchConcurrency", keyFetchConcurrency);
+
+            final Metrics metrics = new Metrics();
+            final HubTrafficCounter trafficCounter = new HubTrafficCounter();
+            final HubClient hubClient = new Retrofit.Builder()
+                    .baseUrl(hub.server.getUrl() + "/api/rest/")
+                    .client(HubTransport.create(config, metrics, trafficCounter))
+                    .addConverterFactory(GsonConverterFactory.create())
+                    .build()
+                    .create(HubClient.class);
+            hubLdap = new HubLdap(
+                    "hub.local",
+                    "admin",
+                    workDir.resolve("work"),
+                    workDir.resolve("hub.snapshot"),
+                    hubClient,
+                    trafficCounter,
+                    "service",
+                    "secret",
+                    workDir.resolve("keystore.p12"),
+                    "secret",
+                    config,
+                    metrics
+            );
+            if (resync) {
+                hubLdap.getDataSynchronizer().syncOnce();
+            }
+        }
+
+        @TearDown(Level.Invocation)
+        public void tearDown() throws Exception {
+            hubLdap.getDirectoryService().shutdown();
+            FileUtils.deleteDirectory(workDir.toFile());
+        }
+    }
+
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Phases {
+
+        public long usersMillis;
+
+        public long fetchUsersMillis;
+
+        public long loadKeysMillis;
+
+        public long buildUsersMillis;
+
+        public long writeUsersMillis;
+
+        public long writeGroupsMillis;
+
+        public long groupWrites;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            usersMillis = 0;
+            fetchUsersMillis = 0;
+            loadKeysMillis = 0;
+            buildUsersMillis = 0;
+            writeUsersMillis = 0;
+            writeGroupsMillis = 0;
+            groupWrites = 0;
+        }
+
+        void add(SyncStats stats) {
+            final Map<String, Long> phases = stats.getPhaseMillis();
+            usersMillis += phases.getOrDefault("users", 0L);
+            fetchUsersMillis += phases.getOrDefault("fetchUsers", 0L);
+            loadKeysMillis += phases.getOrDefault("loadKeys", 0L);
+            buildUsersMillis += phases.getOrDefault("buildUsers", 0L);
+            writeUsersMillis += phases.getOrDefault("writeUsers", 0L);
+            writeGroupsMillis += phases.getOrDefault("writeGroups", 0L);
+            groupWrites += stats.getGroupWrites();
+        }
+    }
+
+    @Benchmark
+    public SyncStats fullSync(Sync sync, Phases phases) {
+        final SyncStats stats = sync.hubLdap.getDataSynchronizer().syncOnce();
+        phases.add(stats);
+        return stats;
+    }
+}
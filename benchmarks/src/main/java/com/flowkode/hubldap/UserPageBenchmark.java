@@ -0,0 +1,48 @@
+package com.flowkode.hubldap;
+
+import com.flowkode.hubldap.data.UsersResponse;
+import com.google.gson.Gson;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parses one Hub user page with Gson data binding and with {@link UserPageReader}, run with {@code -prof gc} to compare
+ * allocation per page.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class UserPageBenchmark {
+
+    @Param({"100", "1000"})
+    public int pageSize;
+
+    @Param({"10", "200"})
+    public int groupsPerUser;
+
+    private final Gson gson = new Gson();
+
+    private String json;
+
+    @Setup
+    public void setUp() {
+        final FakeHubClient hubClient = new FakeHubClient(pageSize, Math.max(groupsPerUser * 2, 100), groupsPerUser);
+        json = gson.toJson(new UsersResponse(0, pageSize, pageSize, hubClient.getAllUsers()));
+    }
+
+    @Benchmark
+    public UsersResponse gson() {
+        return gson.fromJson(new StringReader(json), UsersResponse.class);
+    }
+
+    @Benchmark
+    public int streaming(Blackhole blackhole) throws Exception {
+        return new UserPageReader().read(new StringReader(json), blackhole::consume);
+    }
+}
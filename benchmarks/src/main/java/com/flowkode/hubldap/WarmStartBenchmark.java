@@ -0,0 +1,49 @@
+package com.flowkode.hubldap;
+
+import org.apache.directory.api.util.FileUtils;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Restart of a {@link HubLdap} from the snapshot file {@link HubLdapState} left behind, until the stored data is served.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class WarmStartBenchmark {
+
+    @State(Scope.Thread)
+    public static class Restart {
+
+        public HubLdap hubLdap;
+
+        private Path workDir;
+
+        @Setup(Level.Invocation)
+        public void setUp() throws Exception {
+            workDir = Files.createTempDirectory("hubldap-restart");
+        }
+
+        @TearDown(Level.Invocation)
+        public void tearDown(HubLdapState state) throws Exception {
+            //the last user written, so the whole snapshot was served
+            final int user = state.users - 1;
+            if (!FakeHubClient.login(user).equals(hubLdap.getDirectory().getUsername(DirectoryBenchmark.userDn(state, user)))) {
+                throw new IllegalStateException("Warm start did not serve the stored users");
+            }
+            hubLdap.getDirectoryService().shutdown();
+            FileUtils.deleteDirectory(workDir.toFile());
+        }
+    }
+
+    @Benchmark
+    public HubLdap warmStart(HubLdapState state, Restart restart) throws Exception {
+        restart.hubLdap = state.create(restart.workDir.resolve("work"));
+        return restart.hubLdap;
+    }
+}
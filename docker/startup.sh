@@ -7,6 +7,53 @@ echo "adminPassword=${ADMIN_PASSWORD}" >> /opt/hubLdap/hubLdap.properties
 echo "serviceId=${SERVICE_ID}" >> /opt/hubLdap/hubLdap.properties
 echo "serviceSecret=${SERVICE_SECRET}" >> /opt/hubLdap/hubLdap.properties
 echo "certificatePassword=${CERTIFICATE_PASSWORD:-secret}" >> /opt/hubLdap/hubLdap.properties
+echo "snapshotFile=${SNAPSHOT_FILE:-data/hub.snapshot}" >> /opt/hubLdap/hubLdap.properties
+
+#optional settings are only written when set, so the defaults stay with the application
+optional() {
+    if [ -n "${!1}" ]; then
+        echo "$2=${!1}" >> /opt/hubLdap/hubLdap.properties
+    fi
+}
+
+optional INDEXED_ATTRIBUTES indexedAttributes
+optional SEARCH_CACHE_MAX_ENTRIES searchCacheMaxEntries
+optional SEARCH_CACHE_MAX_RESULT searchCacheMaxResult
+optional PAGE_SIZE pageSize
+optional KEY_FETCH_CONCURRENCY keyFetchConcurrency
+optional KEY_FETCH_TIMEOUT keyFetchTimeout
+optional BIND_CACHE_TTL bindCacheTtl
+optional BIND_CACHE_MAX_SIZE bindCacheMaxSize
+optional BIND_FAILURE_LIMIT bindFailureLimit
+optional BIND_ADDRESS_FAILURE_LIMIT bindAddressFailureLimit
+optional BIND_FAILURE_WINDOW bindFailureWindow
+optional BIND_LOCKOUT bindLockout
+optional BIND_WAIT_TIMEOUT bindWaitTimeout
+optional BIND_TIMEOUT bindTimeout
+optional BIND_CONCURRENCY bindConcurrency
+optional HUB_CONNECT_TIMEOUT hubConnectTimeout
+optional HUB_READ_TIMEOUT hubReadTimeout
+optional HUB_CALL_TIMEOUT hubCallTimeout
+optional HUB_MAX_IDLE_CONNECTIONS hubMaxIdleConnections
+optional HUB_KEEP_ALIVE hubKeepAlive
+optional HUB_HTTP2 hubHttp2
+optional HUB_BREAKER_FAILURES hubBreakerFailures
+optional HUB_BREAKER_OPEN hubBreakerOpen
+optional SCHEMA schema
+optional METRICS_JMX metricsJmx
+optional ADMIN_PORT adminPort
+optional ADMIN_HOST adminHost
+optional SYNC_MIN_INTERVAL syncMinInterval
+optional SYNC_MAX_INTERVAL syncMaxInterval
+optional SYNC_FETCH_THREADS syncFetchThreads
+optional SYNC_KEY_THREADS syncKeyThreads
+optional SYNC_BUILD_THREADS syncBuildThreads
+optional SYNC_QUEUE_SIZE syncQueueSize
+
+#HUB_TIMEOUT_userLogin=3 becomes hubTimeout.userLogin=3
+for name in ${!HUB_TIMEOUT_@}; do
+    echo "hubTimeout.${name#HUB_TIMEOUT_}=${!name}" >> /opt/hubLdap/hubLdap.properties
+done
 
 FINAL_JAVA_OPTS="${JAVA_OPTS} -Djava.net.preferIPv4Stack=true"
 
@@ -0,0 +1,54 @@
+package com.flowkode.hubldap;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Local HTTP endpoint for operators: {@code GET /metrics} in Prometheus text format and {@code POST /sync} to run a sync right away.
+ */
+public class AdminHttpServer {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AdminHttpServer.class);
+
+    private final HttpServer httpServer;
+
+    public AdminHttpServer(String host, int port, Metrics metrics, HubDataSynchronizer dataSynchronizer) throws IOException {
+        httpServer = HttpServer.create(new InetSocketAddress(host, port), 0);
+        httpServer.createContext("/metrics", exchange -> {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                send(exchange, 405, "Use GET\n", "text/plain");
+                return;
+            }
+            send(exchange, 200, metrics.toPrometheus(), "text/plain; version=0.0.4; charset=utf-8");
+        });
+        httpServer.createContext("/sync", exchange -> {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                send(exchange, 405, "Use POST\n", "text/plain");
+                return;
+            }
+            dataSynchronizer.triggerSync();
+            send(exchange, 202, "Sync scheduled\n", "text/plain");
+        });
+    }
+
+    public void start() {
+        httpServer.start();
+        LOGGER.info("Admin endpoint listening on {}", httpServer.getAddress());
+    }
+
+    private static void send(HttpExchange exchange, int code, String body, String contentType) throws IOException {
+        final byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(code, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}
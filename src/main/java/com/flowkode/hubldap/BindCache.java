@@ -0,0 +1,100 @@
+package com.flowkode.hubldap;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import org.apache.directory.api.ldap.model.name.Dn;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Remembers successful binds so they can be verified without asking Hub, only a salted PBKDF2 hash of the password is kept.
+ */
+public class BindCache {
+
+    private static final int ITERATIONS = 10_000;
+
+    private static final int SALT_LENGTH = 16;
+
+    private static final int HASH_LENGTH = 256;
+
+    private final SecureRandom random = new SecureRandom();
+
+    private final Cache<String, Verifier> cache;
+
+    private final LongAdder hits;
+
+    private final LongAdder misses;
+
+    public BindCache(long ttlSeconds, long maxSize, Metrics metrics) {
+        cache = ttlSeconds > 0
+                ? Caffeine.newBuilder().expireAfterWrite(ttlSeconds, TimeUnit.SECONDS).maximumSize(maxSize).build()
+                : null;
+        hits = metrics.counter("hubldap_bind_cache_requests_total", "result", "hit");
+        misses = metrics.counter("hubldap_bind_cache_requests_total", "result", "miss");
+        if (cache != null) {
+            metrics.describe("hubldap_bind_cache_requests_total", "Binds checked against the bind cache, by result.");
+            metrics.describe("hubldap_bind_cache_size", "Binds remembered by the bind cache.");
+            metrics.gauge("hubldap_bind_cache_size", cache::estimatedSize);
+        }
+    }
+
+    public boolean verify(Dn dn, byte[] password) {
+        if (cache == null) {
+            return false;
+        }
+        final Verifier verifier = cache.getIfPresent(dn.getNormName());
+        if (verifier != null && MessageDigest.isEqual(verifier.hash, hash(password, verifier.salt))) {
+            hits.increment();
+            return true;
+        }
+        misses.increment();
+        return false;
+    }
+
+    public void store(Dn dn, byte[] password) {
+        if (cache == null) {
+            return;
+        }
+        final byte[] salt = new byte[SALT_LENGTH];
+        random.nextBytes(salt);
+        cache.put(dn.getNormName(), new Verifier(salt, hash(password, salt)));
+    }
+
+    public void invalidate(Dn dn) {
+        if (cache != null) {
+            cache.invalidate(dn.getNormName());
+        }
+    }
+
+    private static byte[] hash(byte[] password, byte[] salt) {
+        final PBEKeySpec spec = new PBEKeySpec(new String(password, StandardCharsets.UTF_8).toCharArray(), salt, ITERATIONS, HASH_LENGTH);
+        try {
+            return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256").generateSecret(spec).getEncoded();
+        }
+        catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+        finally {
+            spec.clearPassword();
+        }
+    }
+
+    private static class Verifier {
+
+        private final byte[] salt;
+
+        private final byte[] hash;
+
+        private Verifier(byte[] salt, byte[] hash) {
+            this.salt = salt;
+            this.hash = hash;
+        }
+    }
+}
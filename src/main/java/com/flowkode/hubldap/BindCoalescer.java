@@ -0,0 +1,86 @@
+package com.flowkode.hubldap;
+
+import org.apache.directory.api.ldap.model.exception.LdapOperationException;
+import org.apache.directory.api.ldap.model.message.ResultCodeEnum;
+import org.apache.directory.api.ldap.model.name.Dn;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.*;
+
+/**
+ * Collapses concurrent binds with the same DN and password into one Hub verification, the first bind runs it and the
+ * others wait for its result.
+ */
+public class BindCoalescer {
+
+    //dn + password digest -> verification in flight
+    private final ConcurrentMap<String, CompletableFuture<Boolean>> inFlight = new ConcurrentHashMap<>();
+
+    private final long waitTimeoutMillis;
+
+    private final Metrics metrics;
+
+    /**
+     * @param waitTimeoutMillis how long a bind waits for a verification another bind started
+     */
+    public BindCoalescer(long waitTimeoutMillis, Metrics metrics) {
+        this.waitTimeoutMillis = waitTimeoutMillis;
+        this.metrics = metrics;
+        metrics.describe("hubldap_binds_coalesced_total", "Binds that shared the Hub verification of an identical bind already in flight.");
+        metrics.describe("hubldap_bind_wait_timeouts_total", "Coalesced binds that gave up waiting for the shared verification.");
+    }
+
+    /**
+     * Runs {@code verification} unless an identical one is already running, in which case its result is returned.
+     */
+    public boolean verify(Dn dn, byte[] password, Callable<Boolean> verification) throws Exception {
+        final String key = key(dn, password);
+        final CompletableFuture<Boolean> mine = new CompletableFuture<>();
+        final CompletableFuture<Boolean> running = inFlight.putIfAbsent(key, mine);
+        if (running != null) {
+            metrics.counter("hubldap_binds_coalesced_total").increment();
+            try {
+                return running.get(waitTimeoutMillis, TimeUnit.MILLISECONDS);
+            }
+            catch (TimeoutException e) {
+                metrics.counter("hubldap_bind_wait_timeouts_total").increment();
+                throw new LdapOperationException(ResultCodeEnum.UNAVAILABLE, "Gave up waiting for Hub after " + waitTimeoutMillis + " ms", e);
+            }
+            catch (ExecutionException e) {
+                throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+            }
+        }
+
+        try {
+            final boolean verified = verification.call();
+            mine.complete(verified);
+            return verified;
+        }
+        catch (Exception e) {
+            mine.completeExceptionally(e);
+            throw e;
+        }
+        finally {
+            inFlight.remove(key, mine);
+        }
+    }
+
+    private static String key(Dn dn, byte[] password) {
+        try {
+            final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(dn.getNormName().getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            final byte[] hash = digest.digest(password);
+            final StringBuilder key = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                key.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return key.toString();
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package com.flowkode.hubldap;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import org.apache.directory.api.ldap.model.name.Dn;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Counts failed binds per dn and per client address, once either goes over its limit within the window further binds are refused locally
+ * until the lockout ends, so a client retrying a stale password never reaches Hub.
+ */
+public class BindThrottle {
+
+    private static final long MAX_TRACKED = 100_000;
+
+    private final int dnLimit;
+
+    private final int addressLimit;
+
+    private final long windowNanos;
+
+    private final long lockoutNanos;
+
+    private final Cache<String, Failures> byDn;
+
+    private final Cache<String, Failures> byAddress;
+
+    private final Metrics metrics;
+
+    public BindThrottle(int dnLimit, int addressLimit, long windowSeconds, long lockoutSeconds, Metrics metrics) {
+        this.dnLimit = dnLimit;
+        this.addressLimit = addressLimit;
+        this.windowNanos = TimeUnit.SECONDS.toNanos(windowSeconds);
+        this.lockoutNanos = TimeUnit.SECONDS.toNanos(lockoutSeconds);
+        this.metrics = metrics;
+        final long idleSeconds = Math.max(windowSeconds, lockoutSeconds);
+        byDn = Caffeine.newBuilder().expireAfterAccess(idleSeconds, TimeUnit.SECONDS).maximumSize(MAX_TRACKED).build();
+        byAddress = Caffeine.newBuilder().expireAfterAccess(idleSeconds, TimeUnit.SECONDS).maximumSize(MAX_TRACKED).build();
+        metrics.describe("hubldap_binds_throttled_total", "Binds refused locally after too many failures, by what was locked out.");
+        metrics.describe("hubldap_bind_failures_total", "Binds Hub rejected, these feed the throttle.");
+    }
+
+    /**
+     * @param address the client address, null when the bind did not come over the network
+     */
+    public boolean isThrottled(Dn dn, String address) {
+        final long now = System.nanoTime();
+        if (dnLimit > 0 && isBlocked(byDn.getIfPresent(dn.getNormName()), now)) {
+            metrics.counter("hubldap_binds_throttled_total", "by", "dn").increment();
+            return true;
+        }
+        if (addressLimit > 0 && address != null && isBlocked(byAddress.getIfPresent(address), now)) {
+            metrics.counter("hubldap_binds_throttled_total", "by", "address").increment();
+            return true;
+        }
+        return false;
+    }
+
+    public void failed(Dn dn, String address) {
+        metrics.counter("hubldap_bind_failures_total").increment();
+        final long now = System.nanoTime();
+        if (dnLimit > 0) {
+            byDn.get(dn.getNormName(), k -> new Failures()).add(now, dnLimit);
+        }
+        if (addressLimit > 0 && address != null) {
+            byAddress.get(address, k -> new Failures()).add(now, addressLimit);
+        }
+    }
+
+    /**
+     * A successful bind clears the failures of the dn, the address keeps its count since other users may share it.
+     */
+    public void succeeded(Dn dn) {
+        byDn.invalidate(dn.getNormName());
+    }
+
+    private static boolean isBlocked(Failures failures, long now) {
+        return failures != null && failures.isBlocked(now);
+    }
+
+    private class Failures {
+
+        private long windowStart;
+
+        private int count;
+
+        private long blockedUntil;
+
+        private boolean blocked;
+
+        private synchronized void add(long now, int limit) {
+            if (count == 0 || now - windowStart > windowNanos) {
+                windowStart = now;
+                count = 0;
+            }
+            count++;
+            if (count >= limit) {
+                blocked = true;
+                blockedUntil = now + lockoutNanos;
+                count = 0;
+            }
+        }
+
+        private synchronized boolean isBlocked(long now) {
+            if (blocked && now - blockedUntil >= 0) {
+                blocked = false;
+            }
+            return blocked;
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package com.flowkode.hubldap;
+
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.ldif.LdifEntry;
+import org.apache.directory.api.ldap.model.ldif.LdifReader;
+import org.apache.directory.api.ldap.model.schema.registries.Schema;
+import org.apache.directory.api.ldap.schema.loader.JarLdifSchemaLoader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Loads the bundled schema straight from the classpath, together with our own attribute types and object classes, without extracting anything to disk.
+ */
+public class ClasspathSchemaLoader extends JarLdifSchemaLoader {
+
+    //all of them belong to the "other" schema
+    static final List<String> ATTRIBUTE_TYPE_LDIFS = Arrays.asList("memberOf.ldif", "sshPublicKey.ldif");
+
+    static final List<String> OBJECT_CLASS_LDIFS = Arrays.asList("msPrincipal.ldif", "ldapPublicKey.ldif");
+
+    public ClasspathSchemaLoader() throws IOException, LdapException {
+        super();
+    }
+
+    @Override
+    public List<Entry> loadAttributeTypes(Schema... schemas) throws LdapException, IOException {
+        final List<Entry> attributeTypes = super.loadAttributeTypes(schemas);
+        if (containsOther(schemas)) {
+            attributeTypes.addAll(readLdifs(ATTRIBUTE_TYPE_LDIFS));
+        }
+        return attributeTypes;
+    }
+
+    @Override
+    public List<Entry> loadObjectClasses(Schema... schemas) throws LdapException, IOException {
+        final List<Entry> objectClasses = super.loadObjectClasses(schemas);
+        if (containsOther(schemas)) {
+            objectClasses.addAll(readLdifs(OBJECT_CLASS_LDIFS));
+        }
+        return objectClasses;
+    }
+
+    private static boolean containsOther(Schema... schemas) {
+        return Arrays.stream(schemas).anyMatch(s -> "other".equalsIgnoreCase(s.getSchemaName()));
+    }
+
+    static List<Entry> readLdifs(List<String> resources) throws LdapException, IOException {
+        final List<Entry> entries = new ArrayList<>();
+        for (String resource : resources) {
+            try (
+                    InputStream in = ClasspathSchemaLoader.class.getClassLoader().getResourceAsStream(resource);
+                    LdifReader reader = new LdifReader(in)
+            ) {
+                for (LdifEntry ldifEntry : reader) {
+                    entries.add(ldifEntry.getEntry());
+                }
+            }
+        }
+        return entries;
+    }
+}
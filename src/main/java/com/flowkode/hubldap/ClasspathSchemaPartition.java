@@ -0,0 +1,79 @@
+package com.flowkode.hubldap;
+
+import org.apache.directory.api.ldap.model.constants.SchemaConstants;
+import org.apache.directory.api.ldap.model.csn.CsnFactory;
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.exception.LdapOtherException;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.server.core.api.DnFactory;
+import org.apache.directory.server.core.api.interceptor.context.AddOperationContext;
+import org.apache.directory.server.core.api.partition.PartitionTxn;
+import org.apache.directory.server.core.partition.impl.avl.AvlPartition;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * In memory copy of {@code ou=schema}, filled from the schema LDIFs on the classpath instead of an extracted directory.
+ */
+public class ClasspathSchemaPartition extends AvlPartition {
+
+    //lists every schema LDIF bundled in the api-ldap-schema-data jar
+    private static final String SCHEMA_INDEX = "META-INF/apacheds-schema.index";
+
+    public ClasspathSchemaPartition(SchemaManager schemaManager, DnFactory dnFactory) {
+        super(schemaManager, dnFactory);
+        setId("schema");
+    }
+
+    @Override
+    protected void doInit() throws LdapException {
+        super.doInit();
+
+        try {
+            final List<String> resources = new ArrayList<>();
+            final Enumeration<URL> indexes = getClass().getClassLoader().getResources(SCHEMA_INDEX);
+            while (indexes.hasMoreElements()) {
+                try (BufferedReader reader = new BufferedReader(new InputStreamReader(indexes.nextElement().openStream(), StandardCharsets.UTF_8))) {
+                    reader.lines().map(String::trim).filter(l -> !l.isEmpty()).forEach(resources::add);
+                }
+            }
+            final List<Entry> entries = ClasspathSchemaLoader.readLdifs(resources);
+            entries.addAll(ClasspathSchemaLoader.readLdifs(ClasspathSchemaLoader.ATTRIBUTE_TYPE_LDIFS));
+            entries.addAll(ClasspathSchemaLoader.readLdifs(ClasspathSchemaLoader.OBJECT_CLASS_LDIFS));
+            addAll(entries);
+        }
+        catch (IOException e) {
+            throw new LdapOtherException("Could not load the schema from the classpath", e);
+        }
+    }
+
+    private void addAll(List<Entry> entries) throws LdapException, IOException {
+        //parents have to exist before their children
+        entries.sort(Comparator.comparingInt(e -> e.getDn().size()));
+
+        final CsnFactory csnFactory = new CsnFactory(0);
+        final PartitionTxn txn = beginWriteTransaction();
+        for (Entry ldifEntry : entries) {
+            final Entry entry = new DefaultEntry(schemaManager, ldifEntry);
+            if (!entry.containsAttribute(SchemaConstants.ENTRY_UUID_AT)) {
+                entry.add(SchemaConstants.ENTRY_UUID_AT, UUID.randomUUID().toString());
+            }
+            if (!entry.containsAttribute(SchemaConstants.ENTRY_CSN_AT)) {
+                entry.add(SchemaConstants.ENTRY_CSN_AT, csnFactory.newInstance().toString());
+            }
+            final AddOperationContext addContext = new AddOperationContext(null, entry);
+            addContext.setPartition(this);
+            addContext.setTransaction(txn);
+            add(addContext);
+        }
+        txn.commit();
+    }
+}
@@ -9,17 +9,73 @@ import java.util.Set;
 
 public interface Directory {
 
+    enum Change {
+        ADDED,
+        MODIFIED,
+        UNCHANGED
+    }
+
     Cursor<Entry> search(ExprNode node);
 
     void delete(Dn dn);
 
-    void addUser(String name, String id, String mail, String login, Set<String> groups, Set<String> publicKeys);
+    default Change addUser(String name, String id, String mail, String login, Set<String> groups, Set<String> publicKeys) {
+        return stage(prepareUser(name, id, mail, login, groups, publicKeys));
+    }
+
+    /**
+     * Builds a user entry without staging it, safe to call from several threads.
+     */
+    PreparedEntry prepareUser(String name, String id, String mail, String login, Set<String> groups, Set<String> publicKeys);
+
+    /**
+     * Stages an entry built by {@link #prepareUser}, only one thread may stage at a time.
+     */
+    Change stage(PreparedEntry entry);
 
     Cursor<Entry> findAllUsers();
 
     Cursor<Entry> findAllGroups();
 
-    void addGroup(String name, String id);
+    Change addGroup(String name, String id, Set<String> members);
 
+    /**
+     * Makes the dn of a listed group known before the group itself is written, so users written first can point at it.
+     */
+    void expectGroup(String name, String id);
+
+    Dn findGroup(String groupId);
+
+    /**
+     * The Hub login of the user at this dn in the published snapshot, null when there is none.
+     */
     String getUsername(Dn dn);
+
+    /**
+     * Makes every write since the last publish visible to clients at once.
+     */
+    void publish();
+
+    /**
+     * An entry ready to be staged, attributes in {@code preserved} keep the values already there.
+     */
+    final class PreparedEntry {
+
+        private final Entry entry;
+
+        private final Set<String> preserved;
+
+        public PreparedEntry(Entry entry, Set<String> preserved) {
+            this.entry = entry;
+            this.preserved = preserved;
+        }
+
+        public Entry getEntry() {
+            return entry;
+        }
+
+        public Set<String> getPreserved() {
+            return preserved;
+        }
+    }
 }
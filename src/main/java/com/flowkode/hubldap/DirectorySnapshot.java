@@ -0,0 +1,78 @@
+package com.flowkode.hubldap;
+
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.server.core.partition.impl.btree.AbstractBTreePartition;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One published version of the hub data, never written to once it is visible to clients.
+ */
+public class DirectorySnapshot {
+
+    private final long version;
+
+    private final AbstractBTreePartition partition;
+
+    //normalized dn -> entry
+    private final Map<String, Entry> entries;
+
+    //normalized user dn -> login
+    private final Map<String, String> userLogins;
+
+    private final int groupCount;
+
+    //one for as long as the snapshot is the published one plus one per reader still on it
+    private final AtomicInteger references = new AtomicInteger(1);
+
+    public DirectorySnapshot(long version, AbstractBTreePartition partition, Map<String, Entry> entries, Map<String, String> userLogins, int groupCount) {
+        this.version = version;
+        this.partition = partition;
+        this.entries = entries;
+        this.userLogins = userLogins;
+        this.groupCount = groupCount;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public AbstractBTreePartition getPartition() {
+        return partition;
+    }
+
+    public Map<String, Entry> getEntries() {
+        return entries;
+    }
+
+    public Map<String, String> getUserLogins() {
+        return userLogins;
+    }
+
+    public int getGroupCount() {
+        return groupCount;
+    }
+
+    /**
+     * Pins the snapshot for a reader, fails once the last reference is gone and the snapshot is being destroyed.
+     */
+    public boolean retain() {
+        while (true) {
+            final int count = references.get();
+            if (count == 0) {
+                return false;
+            }
+            if (references.compareAndSet(count, count + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @return whether this was the last reference, the caller then destroys the snapshot
+     */
+    public boolean release() {
+        return references.decrementAndGet() == 0;
+    }
+}
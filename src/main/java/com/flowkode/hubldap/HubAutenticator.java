@@ -3,14 +3,18 @@ package com.flowkode.hubldap;
 import com.flowkode.hubldap.data.AuthResponse;
 import org.apache.directory.api.ldap.model.constants.AuthenticationLevel;
 import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.exception.LdapOperationException;
+import org.apache.directory.api.ldap.model.message.ResultCodeEnum;
 import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.server.core.api.CoreSession;
 import org.apache.directory.server.core.api.LdapPrincipal;
 import org.apache.directory.server.core.api.interceptor.context.BindOperationContext;
 import org.apache.directory.server.core.authn.AbstractAuthenticator;
 import retrofit2.Response;
 
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.nio.charset.StandardCharsets;
-import java.util.Base64;
 
 public class HubAutenticator extends AbstractAuthenticator {
 
@@ -21,30 +25,116 @@ public class HubAutenticator extends AbstractAuthenticator {
 
     private final Directory directory;
 
-    public HubAutenticator(Dn rootDn, Directory directory, HubClient hubClient, String serviceId, String serviceSecret) {
+    private final BindCache bindCache;
+
+    private final Metrics metrics;
+
+    private final BindThrottle bindThrottle;
+
+    private final BindCoalescer bindCoalescer;
+
+    private final HubCallExecutor hubCallExecutor;
+
+    //read by HubBindInterceptor, bind runs on one thread from the interceptor down to here
+    private final ThreadLocal<LdapOperationException> hubFailure = new ThreadLocal<>();
+
+    public HubAutenticator(Dn rootDn, Directory directory, HubClient hubClient, HubTokenManager tokenManager, BindCache bindCache, BindThrottle bindThrottle, BindCoalescer bindCoalescer, HubCallExecutor hubCallExecutor, Metrics metrics) {
         super(AuthenticationLevel.SIMPLE, rootDn);
         this.hubClient = hubClient;
         this.directory = directory;
-        credentials = "Basic " + Base64.getEncoder().encodeToString((serviceId + ":" + serviceSecret).getBytes());
+        this.bindCache = bindCache;
+        this.metrics = metrics;
+        this.bindThrottle = bindThrottle;
+        this.bindCoalescer = bindCoalescer;
+        this.hubCallExecutor = hubCallExecutor;
+        metrics.describe("hubldap_bind_seconds", "Bind latency by outcome.");
+        credentials = tokenManager.getServiceCredentials();
     }
 
     @Override
     public LdapPrincipal authenticate(BindOperationContext bindOperationContext) throws LdapException {
+        final long start = System.nanoTime();
+        String outcome = "error";
+        hubFailure.remove();
         try {
-            String username = directory.getUsername(bindOperationContext.getDn());
-            String password = new String(bindOperationContext.getCredentials(), StandardCharsets.UTF_8);
-
-            Response<AuthResponse> u = hubClient.userLogin(credentials, username, password).execute();
-            if (u.isSuccessful()) {
+            if (bindCache.verify(bindOperationContext.getDn(), bindOperationContext.getCredentials())) {
+                outcome = "cached";
                 return new LdapPrincipal(this.getDirectoryService().getSchemaManager(), bindOperationContext.getDn(), AuthenticationLevel.SIMPLE);
             }
+
+            final Dn dn = bindOperationContext.getDn();
+            //not a user of the published snapshot, Hub has no login to check the password against
+            final String username = directory.getUsername(dn);
+            if (username == null) {
+                outcome = "unknown";
+                throw new javax.naming.AuthenticationException("Unknown user: " + dn);
+            }
+
+            final String address = clientAddress(bindOperationContext);
+            if (bindThrottle.isThrottled(dn, address)) {
+                outcome = "throttled";
+                throw new javax.naming.AuthenticationException("Too many failed binds for: " + dn);
+            }
+
+            final byte[] bindPassword = bindOperationContext.getCredentials();
+            //identical binds arriving together share one Hub call, only that call feeds the cache and the throttle
+            final boolean verified = bindCoalescer.verify(dn, bindPassword, () -> {
+                String password = new String(bindPassword, StandardCharsets.UTF_8);
+
+                Response<AuthResponse> u = hubCallExecutor.execute(hubClient.userLogin(credentials, username, password));
+                if (u.isSuccessful()) {
+                    bindCache.store(dn, bindPassword);
+                    bindThrottle.succeeded(dn);
+                    return true;
+                }
+                bindThrottle.failed(dn, address);
+                return false;
+            });
+            if (verified) {
+                outcome = "success";
+                return new LdapPrincipal(this.getDirectoryService().getSchemaManager(), dn, AuthenticationLevel.SIMPLE);
+            }
             else {
-                throw new javax.naming.AuthenticationException("Invalid credentials for user: " + username);
+                outcome = "rejected";
+                throw new javax.naming.AuthenticationException("Invalid credentials for user: " + dn);
             }
         }
+        catch (LdapOperationException ex) {
+            outcome = ex.getResultCode() == ResultCodeEnum.BUSY ? "busy" : "unavailable";
+            hubFailure.set(ex);
+            throw ex;
+        }
         catch (Exception ex) {
             throw new LdapException("Could not authenticate.");
         }
+        finally {
+            metrics.time("hubldap_bind_seconds", start, "outcome", outcome);
+        }
+
+    }
+
+    private static String clientAddress(BindOperationContext bindOperationContext) {
+        final CoreSession session = bindOperationContext.getSession();
+        if (session == null) {
+            return null;
+        }
+        final SocketAddress address = session.getClientAddress();
+        if (address instanceof InetSocketAddress) {
+            return ((InetSocketAddress) address).getAddress().getHostAddress();
+        }
+        return address == null ? null : address.toString();
+    }
+
+    /**
+     * The busy/unavailable failure of the last bind on this thread, if Hub could not be asked.
+     */
+    LdapOperationException takeHubFailure() {
+        final LdapOperationException failure = hubFailure.get();
+        hubFailure.remove();
+        return failure;
+    }
 
+    public void invalidate(Dn dn) {
+        bindCache.invalidate(dn);
     }
 }
@@ -0,0 +1,32 @@
+package com.flowkode.hubldap;
+
+import org.apache.directory.api.ldap.model.exception.LdapAuthenticationException;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.exception.LdapOperationException;
+import org.apache.directory.server.core.api.interceptor.BaseInterceptor;
+import org.apache.directory.server.core.api.interceptor.context.BindOperationContext;
+
+/**
+ * The authentication interceptor turns every authenticator failure into {@code invalidCredentials}, this puts back the
+ * {@code busy}/{@code unavailable} result when the bind failed because Hub could not be asked.
+ */
+public class HubBindInterceptor extends BaseInterceptor {
+
+    private final HubAutenticator hubAutenticator;
+
+    public HubBindInterceptor(HubAutenticator hubAutenticator) {
+        super("hubBindInterceptor");
+        this.hubAutenticator = hubAutenticator;
+    }
+
+    @Override
+    public void bind(BindOperationContext bindContext) throws LdapException {
+        try {
+            next(bindContext);
+        }
+        catch (LdapAuthenticationException e) {
+            final LdapOperationException hubFailure = hubAutenticator.takeHubFailure();
+            throw hubFailure != null ? hubFailure : e;
+        }
+    }
+}
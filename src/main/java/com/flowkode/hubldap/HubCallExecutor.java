@@ -0,0 +1,113 @@
+package com.flowkode.hubldap;
+
+import org.apache.directory.api.ldap.model.exception.LdapOperationException;
+import org.apache.directory.api.ldap.model.message.ResultCodeEnum;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import retrofit2.Call;
+import retrofit2.Response;
+
+import java.io.IOException;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs Hub calls made while handling LDAP operations on a dedicated, bounded executor so a slow Hub cannot hold the
+ * caller past {@code timeoutMillis}. Uses virtual threads when the runtime has them.
+ */
+public class HubCallExecutor {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(HubCallExecutor.class);
+
+    private final ExecutorService executor;
+
+    private final Semaphore permits;
+
+    private final int maxConcurrent;
+
+    private final long timeoutMillis;
+
+    private final Metrics metrics;
+
+    public HubCallExecutor(int maxConcurrent, long timeoutMillis, Metrics metrics) {
+        this.maxConcurrent = maxConcurrent;
+        this.timeoutMillis = timeoutMillis;
+        this.metrics = metrics;
+        permits = new Semaphore(maxConcurrent);
+        executor = newExecutor();
+
+        metrics.describe("hubldap_hub_calls_in_flight", "Hub calls currently running for LDAP operations.");
+        metrics.gauge("hubldap_hub_calls_in_flight", () -> maxConcurrent - permits.availablePermits());
+        metrics.describe("hubldap_hub_calls_rejected_total", "Hub calls refused because too many were already running.");
+        metrics.describe("hubldap_hub_call_timeouts_total", "Hub calls abandoned after the deadline.");
+    }
+
+    /**
+     * Executes {@code call}, answers {@code busy} when the executor is full and {@code unavailable} when Hub does not
+     * answer in time or its circuit is open.
+     */
+    public <T> Response<T> execute(Call<T> call) throws LdapOperationException, IOException, InterruptedException {
+        if (!permits.tryAcquire()) {
+            metrics.counter("hubldap_hub_calls_rejected_total").increment();
+            throw new LdapOperationException(ResultCodeEnum.BUSY, "Too many Hub calls in flight: " + maxConcurrent);
+        }
+
+        final Future<Response<T>> future;
+        try {
+            future = executor.submit(() -> {
+                try {
+                    return call.execute();
+                }
+                finally {
+                    permits.release();
+                }
+            });
+        }
+        catch (RejectedExecutionException e) {
+            permits.release();
+            throw new LdapOperationException(ResultCodeEnum.UNAVAILABLE, "Hub call executor is shut down", e);
+        }
+
+        try {
+            return future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+        catch (TimeoutException e) {
+            //cancelling the call aborts the socket, interrupting alone would leave OkHttp blocked on the read
+            call.cancel();
+            future.cancel(true);
+            metrics.counter("hubldap_hub_call_timeouts_total").increment();
+            throw new LdapOperationException(ResultCodeEnum.UNAVAILABLE, "Hub did not answer within " + timeoutMillis + " ms", e);
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof HubUnavailableException) {
+                throw new LdapOperationException(ResultCodeEnum.UNAVAILABLE, e.getCause().getMessage(), e.getCause());
+            }
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+        catch (InterruptedException e) {
+            call.cancel();
+            throw e;
+        }
+    }
+
+    private static ExecutorService newExecutor() {
+        //Java 21+, looked up reflectively since we build for 11
+        try {
+            final ExecutorService executor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            LOGGER.info("Hub calls run on virtual threads.");
+            return executor;
+        }
+        catch (ReflectiveOperationException e) {
+            final AtomicInteger threadCount = new AtomicInteger();
+            //the semaphore keeps the pool bounded
+            return Executors.newCachedThreadPool(r -> {
+                final Thread thread = new Thread(r, "hub-call-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package com.flowkode.hubldap;
+
+import okhttp3.Interceptor;
+import okhttp3.Response;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stops calling Hub after {@code failureThreshold} consecutive failures, calls fail fast with
+ * {@link HubUnavailableException} for {@code openMillis}, then a single trial call decides whether to close again.
+ * <p>
+ * Only connection errors and 5xx answers count as failures, a rejected password means Hub is fine.
+ */
+public class HubCircuitBreaker implements Interceptor {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(HubCircuitBreaker.class);
+
+    public enum State {CLOSED, OPEN, HALF_OPEN}
+
+    private final int failureThreshold;
+
+    private final long openNanos;
+
+    private final Metrics metrics;
+
+    private State state = State.CLOSED;
+
+    private int failures;
+
+    private long openedAt;
+
+    public HubCircuitBreaker(int failureThreshold, long openMillis, Metrics metrics) {
+        this.failureThreshold = failureThreshold;
+        this.openNanos = TimeUnit.MILLISECONDS.toNanos(openMillis);
+        this.metrics = metrics;
+        metrics.describe("hubldap_hub_circuit_state", "Hub circuit breaker state, 0 closed, 1 open, 2 half open.");
+        metrics.gauge("hubldap_hub_circuit_state", () -> getState().ordinal());
+        metrics.describe("hubldap_hub_circuit_rejected_total", "Hub calls failed fast while the circuit was open.");
+        metrics.describe("hubldap_hub_circuit_transitions_total", "Circuit breaker state changes by new state.");
+    }
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        if (!allow()) {
+            metrics.counter("hubldap_hub_circuit_rejected_total").increment();
+            throw new HubUnavailableException("Hub circuit is open");
+        }
+
+        final Response response;
+        try {
+            response = chain.proceed(chain.request());
+        }
+        catch (IOException | RuntimeException e) {
+            failed();
+            throw e;
+        }
+        if (response.code() >= 500) {
+            failed();
+        }
+        else {
+            succeeded();
+        }
+        return response;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    private synchronized boolean allow() {
+        switch (state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (System.nanoTime() - openedAt < openNanos) {
+                    return false;
+                }
+                //let this one call through as the trial
+                transition(State.HALF_OPEN);
+                return true;
+            default:
+                //a trial is already running
+                return false;
+        }
+    }
+
+    private synchronized void succeeded() {
+        failures = 0;
+        if (state != State.CLOSED) {
+            transition(State.CLOSED);
+        }
+    }
+
+    private synchronized void failed() {
+        failures++;
+        if (state == State.HALF_OPEN || (state == State.CLOSED && failures >= failureThreshold)) {
+            openedAt = System.nanoTime();
+            transition(State.OPEN);
+        }
+    }
+
+    private void transition(State to) {
+        if (to == State.OPEN) {
+            LOGGER.warn("Hub circuit opened after {} failures.", failures);
+        }
+        else if (to == State.CLOSED) {
+            LOGGER.info("Hub circuit closed.");
+        }
+        state = to;
+        metrics.counter("hubldap_hub_circuit_transitions_total", "to", to.name().toLowerCase()).increment();
+    }
+}
@@ -1,16 +1,27 @@
 package com.flowkode.hubldap;
 
 import com.flowkode.hubldap.data.*;
+import okhttp3.ResponseBody;
 import retrofit2.Call;
 import retrofit2.http.*;
 
 public interface HubClient {
 
-    @GET("usergroups?fields=total,type,id,name")
-    Call<UserGroupsResponse> getUserGroups(@Header("Authorization") String authorization, @Query("$skip") int start, @Query("$top") int limit);
+    //only what UserPageReader reads, groups are kept by id
+    String USER_FIELDS = "total,users(id,name,login,banned,profile(email(email)),transitiveGroups(id))";
+
+    String USER_GROUP_FIELDS = "total,usergroups(id,name)";
+
+    @GET("usergroups")
+    Call<UserGroupsResponse> getUserGroups(@Header("Authorization") String authorization, @Query("fields") String fields, @Query("$skip") int start, @Query("$top") int limit);
 
     @GET("users")
-    Call<UsersResponse> getUsers(@Header("Authorization") String authorization, @Query("$skip") int start, @Query("$top") int limit);
+    Call<UsersResponse> getUsers(@Header("Authorization") String authorization, @Query("fields") String fields, @Query("$skip") int start, @Query("$top") int limit);
+
+    //raw body for UserPageReader, nothing is buffered before it starts reading
+    @Streaming
+    @GET("users")
+    Call<ResponseBody> streamUsers(@Header("Authorization") String authorization, @Query("fields") String fields, @Query("$skip") int start, @Query("$top") int limit);
 
     @POST("oauth2/token")
     @FormUrlEncoded
@@ -29,6 +40,18 @@ public interface HubClient {
     @GET("users/{userId}/sshpublickeys")
     Call<SshKeysResponse> getUserKeys(@Header("Authorization") String authorization, @Path("userId") String userId, @Query("$skip") int start, @Query("$top") int limit);
 
+    default Call<UserGroupsResponse> getUserGroups(String authorization, int start, int limit) {
+        return getUserGroups(authorization, USER_GROUP_FIELDS, start, limit);
+    }
+
+    default Call<UsersResponse> getUsers(String authorization, int start, int limit) {
+        return getUsers(authorization, USER_FIELDS, start, limit);
+    }
+
+    default Call<ResponseBody> streamUsers(String authorization, int start, int limit) {
+        return streamUsers(authorization, USER_FIELDS, start, limit);
+    }
+
     default Call<AuthResponse> userLogin(String authorization, String username, String password) {
         return userLogin(authorization, "0-0-0-0-0", "password", username, password);
     }
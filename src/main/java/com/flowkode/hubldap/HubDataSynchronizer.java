@@ -5,108 +5,320 @@ import org.apache.directory.api.ldap.model.cursor.Cursor;
 import org.apache.directory.api.ldap.model.cursor.CursorException;
 import org.apache.directory.api.ldap.model.entry.Entry;
 import org.apache.directory.api.ldap.model.exception.LdapException;
+import okhttp3.ResponseBody;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import retrofit2.Response;
 
 import java.io.IOException;
-import java.util.Arrays;
-import java.util.Base64;
-import java.util.Optional;
-import java.util.Set;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
 public class HubDataSynchronizer {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(HubDataSynchronizer.class);
 
-    private static final int CHUNK_SIZE = 10;
-
-    private static final int MAX_SSH_KEYS = 100;
+    //HubClient methods only sync calls, binds share the client so a total would count their traffic too
+    private static final List<String> SYNC_ENDPOINTS = Arrays.asList("getUserGroups", "streamUsers", "getUserKeys");
 
     private final HubClient hubClient;
 
     private final Directory directory;
 
-    private final String serviceCredentials;
+    private final SshKeyFetcher keyFetcher;
+
+    private final HubTrafficCounter trafficCounter;
+
+    private final int pageSize;
+
+    private final HubTokenManager tokenManager;
+
+    private final Metrics metrics;
+
+    private final long minIntervalMillis;
+
+    private final long maxIntervalMillis;
+
+    private final int fetchThreads;
+
+    private final int keyThreads;
+
+    private final int buildThreads;
+
+    private final int queueSize;
 
     private ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
 
-    public HubDataSynchronizer(Directory directory, HubClient hubClient, String serviceId, String serviceSecret) {
+    private final AtomicBoolean triggered = new AtomicBoolean();
+
+    //only touched from the scheduler thread
+    private long intervalMillis;
+
+    //what was actually scheduled, including failure backoff and jitter
+    private volatile long nextDelayMillis;
+
+    private int consecutiveFailures;
+
+    private ScheduledFuture<?> nextSync;
+
+    public HubDataSynchronizer(Directory directory, HubClient hubClient, HubTokenManager tokenManager, SshKeyFetcher keyFetcher, HubTrafficCounter trafficCounter, int pageSize, long minIntervalMillis, long maxIntervalMillis, int fetchThreads, int keyThreads, int buildThreads, int queueSize, Metrics metrics) {
         this.directory = directory;
         this.hubClient = hubClient;
-
-        serviceCredentials = "Basic " + Base64.getEncoder().encodeToString((serviceId + ":" + serviceSecret).getBytes());
+        this.tokenManager = tokenManager;
+        this.keyFetcher = keyFetcher;
+        this.trafficCounter = trafficCounter;
+        this.pageSize = pageSize;
+        this.metrics = metrics;
+        if (minIntervalMillis <= 0) {
+            throw new IllegalArgumentException("syncMinInterval must be at least one second, got " + TimeUnit.MILLISECONDS.toSeconds(minIntervalMillis) + ".");
+        }
+        if (maxIntervalMillis < minIntervalMillis) {
+            throw new IllegalArgumentException("syncMaxInterval (" + TimeUnit.MILLISECONDS.toSeconds(maxIntervalMillis) + ") must not be below syncMinInterval (" + TimeUnit.MILLISECONDS.toSeconds(minIntervalMillis) + ").");
+        }
+        this.minIntervalMillis = minIntervalMillis;
+        this.maxIntervalMillis = maxIntervalMillis;
+        this.fetchThreads = fetchThreads;
+        this.keyThreads = keyThreads;
+        this.buildThreads = buildThreads;
+        this.queueSize = queueSize;
+        intervalMillis = minIntervalMillis;
+        metrics.describe("hubldap_sync_phase_seconds", "Duration of each sync phase, the stages of the users phase report their busy time summed over their threads.");
+        metrics.describe("hubldap_sync_entries_total", "Entries handled by sync, by outcome.");
+        metrics.describe("hubldap_syncs_total", "Sync runs by outcome.");
+        metrics.describe("hubldap_sync_last_success_seconds", "Unix time of the last successful sync.");
+        metrics.describe("hubldap_sync_interval_seconds", "Delay before the next sync.");
+        metrics.gauge("hubldap_sync_interval_seconds", () -> nextDelayMillis / 1000.0);
     }
 
     public void startSync() {
-        scheduler.scheduleWithFixedDelay(this::sync, 0, 1, TimeUnit.MINUTES);
+        nextSync = scheduler.schedule(this::runAndReschedule, 0, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Runs a sync as soon as the current one, if any, is done, requests made while one is already pending are merged.
+     */
+    public void triggerSync() {
+        if (triggered.compareAndSet(false, true)) {
+            scheduler.execute(() -> {
+                triggered.set(false);
+                if (nextSync != null) {
+                    nextSync.cancel(false);
+                }
+                LOGGER.info("Sync requested.");
+                runAndReschedule();
+            });
+        }
     }
 
-    private void sync() {
+    private void runAndReschedule() {
+        final long delay = nextDelay(sync(new SyncStats()));
+        nextDelayMillis = delay;
+        LOGGER.debug("Next sync in {} ms.", delay);
+        nextSync = scheduler.schedule(this::runAndReschedule, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Quiet cycles double the interval up to the maximum, changes bring it back to the minimum and failures back off exponentially with jitter.
+     */
+    private long nextDelay(Outcome outcome) {
+        switch (outcome) {
+            case FAILED:
+                consecutiveFailures++;
+                final long backoff = Math.min(maxIntervalMillis, minIntervalMillis << Math.min(consecutiveFailures, 20));
+                intervalMillis = minIntervalMillis;
+                return backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+            case CHANGED:
+                consecutiveFailures = 0;
+                intervalMillis = minIntervalMillis;
+                return intervalMillis;
+            default:
+                consecutiveFailures = 0;
+                intervalMillis = Math.min(maxIntervalMillis, intervalMillis * 2);
+                return intervalMillis;
+        }
+    }
+
+    /**
+     * Runs one sync on the calling thread without touching the schedule, used by the benchmarks.
+     */
+    SyncStats syncOnce() {
+        final SyncStats stats = new SyncStats();
+        if (sync(stats) == Outcome.FAILED) {
+            throw new IllegalStateException("Sync failed: " + stats);
+        }
+        return stats;
+    }
+
+    private Outcome sync(SyncStats stats) {
         try {
-            final Response<AuthResponse> response = hubClient.serviceLogin(serviceCredentials).execute();
-            if (response.isSuccessful()) {
-                String token = "Bearer " + response.body().getAccessToken();
-                loadUserGroups(token);
-                Thread.sleep(500);
-                loadUsers(token);
-                Thread.sleep(500);
-                purgeUsers(token);
-                Thread.sleep(500);
-                purgeGroups(token);
+            final long bytesBefore = trafficCounter.getBytes(SYNC_ENDPOINTS);
+
+            long phaseStart = System.nanoTime();
+            final Listing<UserGroup> userGroups = loadUserGroups();
+            stats.phaseFinished("loadGroups", phaseStart);
+            //users are written before their groups, they need the group dns up front
+            userGroups.items.forEach(g -> directory.expectGroup(g.getName(), g.getId()));
+
+            phaseStart = System.nanoTime();
+            final UserListing users = loadUsers(stats);
+            stats.phaseFinished("users", phaseStart);
+
+            phaseStart = System.nanoTime();
+            writeGroups(userGroups.items, users, stats);
+            stats.phaseFinished("writeGroups", phaseStart);
+
+            phaseStart = System.nanoTime();
+            //only purge against complete listings, a partial one would wipe live entries
+            if (users.complete) {
+                purgeUsers(users.names, stats);
+            }
+            else {
+                LOGGER.warn("User listing incomplete, skipping user purge.");
+            }
+            if (userGroups.complete) {
+                purgeGroups(userGroups.items.stream().collect(Collectors.toMap(UserGroup::getId, UserGroup::getName, (a, b) -> a)), stats);
             }
             else {
-                LOGGER.error("Failed to sync got code {} when logging in.", response.code());
+                LOGGER.warn("Group listing incomplete, skipping group purge.");
+            }
+            stats.phaseFinished("purge", phaseStart);
+
+            phaseStart = System.nanoTime();
+            directory.publish();
+            stats.phaseFinished("publish", phaseStart);
+            stats.setBytesReceived(trafficCounter.getBytes(SYNC_ENDPOINTS) - bytesBefore);
+            LOGGER.info("Sync finished: {}", stats);
+            record(stats);
+            if (!users.complete || !userGroups.complete) {
+                metrics.counter("hubldap_syncs_total", "outcome", "failure").increment();
+                return Outcome.FAILED;
             }
+            succeeded();
+            return stats.getAdded() + stats.getModified() + stats.getRemoved() > 0 ? Outcome.CHANGED : Outcome.UNCHANGED;
         }
         catch (Exception e) {
+            metrics.counter("hubldap_syncs_total", "outcome", "failure").increment();
             LOGGER.error("Could not sync.", e);
+            return Outcome.FAILED;
         }
     }
 
-    private void loadUsers(String authToken) throws IOException {
-        int total = Integer.MAX_VALUE;
+    private void record(SyncStats stats) {
+        stats.getPhaseNanos().forEach((phase, nanos) -> metrics.histogram("hubldap_sync_phase_seconds", "phase", phase).record(nanos));
+        metrics.counter("hubldap_sync_entries_total", "change", "added").add(stats.getAdded());
+        metrics.counter("hubldap_sync_entries_total", "change", "modified").add(stats.getModified());
+        metrics.counter("hubldap_sync_entries_total", "change", "unchanged").add(stats.getUnchanged());
+        metrics.counter("hubldap_sync_entries_total", "change", "removed").add(stats.getRemoved());
+    }
 
-        int start = 0;
+    private void succeeded() {
+        metrics.counter("hubldap_syncs_total", "outcome", "success").increment();
+        final long finished = System.currentTimeMillis() / 1000;
+        metrics.gauge("hubldap_sync_last_success_seconds", () -> finished);
+    }
 
-        while (total > start) {
-            final Response<UsersResponse> response = hubClient.getUsers(authToken, start, CHUNK_SIZE).execute();
-            final UsersResponse body = response.body();
-            start += CHUNK_SIZE;
-            total = body.getTotal();
+    /**
+     * Fetches, enriches, builds and stages users as a pipeline, each stage works on pages and blocks when the next one falls behind.
+     */
+    private UserListing loadUsers(SyncStats stats) throws Exception {
+        final UserListing listing = new UserListing();
+        final UserPageReader pageReader = new UserPageReader();
+        final AtomicInteger nextSkip = new AtomicInteger();
+        final AtomicInteger total = new AtomicInteger(Integer.MAX_VALUE);
+        final AtomicInteger received = new AtomicInteger();
+        final AtomicBoolean pageFailed = new AtomicBoolean();
+
+        final SyncPipeline pipeline = new SyncPipeline(metrics);
+        final BlockingQueue<List<UserRecord>> pages = pipeline.queue("pages", queueSize);
+        final BlockingQueue<List<LoadedUser>> withKeys = pipeline.queue("keys", queueSize);
+        final BlockingQueue<List<PreparedUser>> prepared = pipeline.queue("entries", queueSize);
+
+        pipeline.source("fetchUsers", fetchThreads, () -> {
+            final int skip = nextSkip.getAndAdd(pageSize);
+            if (skip >= total.get() || pageFailed.get()) {
+                return null;
+            }
+            final Response<ResponseBody> response = tokenManager.execute(token -> hubClient.streamUsers(token, skip, pageSize));
+            if (!response.isSuccessful()) {
+                LOGGER.error("Failed to list users got code {}.", response.code());
+                pageFailed.set(true);
+                return null;
+            }
+            final List<UserRecord> page = new ArrayList<>(pageSize);
+            try (ResponseBody body = response.body()) {
+                total.set(pageReader.read(body.charStream(), page::add));
+            }
+            received.addAndGet(page.size());
+            return page;
+        }, pages);
 
-            for (User user : body.getUsers()) {
-                final Response<SshKeysResponse> keysResponse = hubClient.getUserKeys(authToken, user.getId(), 0, MAX_SSH_KEYS).execute();
-                final Set<String> userKeys = Arrays.stream(keysResponse.body().getSshKeys())
-                                                   .map(SshKey::getOpenSshKey)
-                                                   .collect(Collectors.toSet());
-                directory.addUser(
+        pipeline.stage("loadKeys", keyThreads, pages, page -> {
+            final Map<String, Set<String>> keys = keyFetcher.fetch(page.stream().map(UserRecord::getId).collect(Collectors.toList()));
+            final List<LoadedUser> users = new ArrayList<>(page.size());
+            for (UserRecord user : page) {
+                users.add(new LoadedUser(user, keys.get(user.getId())));
+
+                LOGGER.debug("Found user: {}", user.getName());
+            }
+            return users;
+        }, withKeys);
+
+        pipeline.stage("buildUsers", buildThreads, withKeys, users -> {
+            final List<PreparedUser> entries = new ArrayList<>(users.size());
+            for (LoadedUser loadedUser : users) {
+                final UserRecord user = loadedUser.user;
+                entries.add(new PreparedUser(user, directory.prepareUser(
                         user.getName(),
                         user.getId(),
-                        Optional.of(user.getProfile()).map(Profile::getEmail).map(Email::getEmail).orElse(""),
+                        user.getEmail(),
                         user.getLogin(),
-                        Arrays.stream(user.getGroups()).map(UserGroup::getId).collect(Collectors.toSet()),
-                        userKeys
-                );
+                        new HashSet<>(Arrays.asList(user.getGroupIds())),
+                        loadedUser.keys
+                )));
+            }
+            return entries;
+        }, prepared);
 
-                LOGGER.debug("Found user: {}", user.getName());
+        //staging has a single writer, the listing and stats are only touched here until the pipeline is done
+        pipeline.stage("writeUsers", 1, prepared, entries -> {
+            for (PreparedUser entry : entries) {
+                stats.record(directory.stage(entry.entry));
+                listing.add(entry.user);
             }
+            return null;
+        }, null);
+
+        pipeline.await(stats);
+        listing.complete = !pageFailed.get() && received.get() >= total.get();
+        return listing;
+    }
+
+    private void writeGroups(List<UserGroup> userGroups, UserListing users, SyncStats stats) {
+        //each group gets at most one write carrying its whole member set
+        for (UserGroup userGroup : userGroups) {
+            //without every user the member set is unknown, so leave it as it is
+            final Set<String> groupMembers = users.complete ? users.members.getOrDefault(userGroup.getId(), Collections.emptySet()) : null;
+            final Directory.Change change = directory.addGroup(userGroup.getName(), userGroup.getId(), groupMembers);
+            if (change != Directory.Change.UNCHANGED) {
+                stats.groupWritten();
+            }
+            stats.record(change);
         }
+        LOGGER.debug("Wrote {} of {} groups.", stats.getGroupWrites(), userGroups.size());
     }
 
-    private void purgeUsers(String authToken) throws IOException {
-        //purge users that do not exist anymore
+    private void purgeUsers(Map<String, String> userNames, SyncStats stats) throws IOException {
+        //purge users that do not exist anymore or were renamed
         try (final Cursor<Entry> search = directory.findAllUsers()) {
             while (search != null && search.next()) {
                 final Entry entry = search.get();
                 final String userId = entry.get("description").getString();
-                final Response<User> response = hubClient.getUser(authToken, userId).execute();
-                if (response.raw().code() == 404 || (response.isSuccessful() && !response.body().getId().equals(userId))) {
+                if (!entry.get("cn").getString().equals(userNames.get(userId))) {
                     directory.delete(entry.getDn());
+                    stats.removed();
                     LOGGER.debug("Removed user: {}", entry.getDn());
                 }
             }
@@ -116,35 +328,40 @@ public class HubDataSynchronizer {
         }
     }
 
-    private void loadUserGroups(String authToken) throws IOException {
+    private Listing<UserGroup> loadUserGroups() throws IOException {
+        final List<UserGroup> userGroups = new ArrayList<>();
         int total = Integer.MAX_VALUE;
 
         int start = 0;
 
         while (total > start) {
-            final Response<UserGroupsResponse> response = hubClient.getUserGroups(authToken, start, CHUNK_SIZE).execute();
+            final int skip = start;
+            final Response<UserGroupsResponse> response = tokenManager.execute(token -> hubClient.getUserGroups(token, skip, pageSize));
+            if (!response.isSuccessful()) {
+                LOGGER.error("Failed to list groups got code {}.", response.code());
+                return new Listing<>(userGroups, false);
+            }
             final UserGroupsResponse body = response.body();
-            start += CHUNK_SIZE;
+            start += pageSize;
             total = body.getTotal();
 
             for (UserGroup userGroup : body.getUserGroups()) {
-                directory.addGroup(userGroup.getName(), userGroup.getId());
+                userGroups.add(userGroup);
                 LOGGER.debug("Found group: {}", userGroup.getName());
             }
         }
+        return new Listing<>(userGroups, userGroups.size() >= total);
     }
 
-    private void purgeGroups(String authToken) throws IOException {
-        //purge users that do not exist anymore
+    private void purgeGroups(Map<String, String> groupNames, SyncStats stats) throws IOException {
+        //purge groups that do not exist anymore or were renamed
         try (final Cursor<Entry> search = directory.findAllGroups()) {
             while (search != null && search.next()) {
                 final Entry entry = search.get();
                 final String groupId = entry.get("description").getString();
-                final String groupName = entry.get("cn").getString();
-                final Response<UserGroup> response = hubClient.getUserGroup(authToken, groupId).execute();
-                if (response.raw().code() == 404
-                        || (response.isSuccessful() && (!response.body().getId().equals(groupId) || !response.body().getName().equals(groupName)))) {
+                if (!entry.get("cn").getString().equals(groupNames.get(groupId))) {
                     directory.delete(entry.getDn());
+                    stats.removed();
                     LOGGER.debug("Removed group: {}", entry.getDn());
                 }
             }
@@ -153,4 +370,64 @@ public class HubDataSynchronizer {
             LOGGER.error(e.getMessage(), e);
         }
     }
+
+    private enum Outcome {
+        CHANGED,
+        UNCHANGED,
+        FAILED
+    }
+
+    private static class Listing<T> {
+
+        private final List<T> items;
+
+        private final boolean complete;
+
+        private Listing(List<T> items, boolean complete) {
+            this.items = items;
+            this.complete = complete;
+        }
+    }
+
+    private static class UserListing {
+
+        //user id -> name
+        private final Map<String, String> names = new HashMap<>();
+
+        //group id -> member names
+        private final Map<String, Set<String>> members = new HashMap<>();
+
+        private boolean complete;
+
+        private void add(UserRecord user) {
+            names.putIfAbsent(user.getId(), user.getName());
+            for (String groupId : user.getGroupIds()) {
+                members.computeIfAbsent(groupId, k -> new HashSet<>()).add(user.getName());
+            }
+        }
+    }
+
+    private static class LoadedUser {
+
+        private final UserRecord user;
+
+        private final Set<String> keys;
+
+        private LoadedUser(UserRecord user, Set<String> keys) {
+            this.user = user;
+            this.keys = keys;
+        }
+    }
+
+    private static class PreparedUser {
+
+        private final UserRecord user;
+
+        private final Directory.PreparedEntry entry;
+
+        private PreparedUser(UserRecord user, Directory.PreparedEntry entry) {
+            this.user = user;
+            this.entry = entry;
+        }
+    }
 }
@@ -1,14 +1,17 @@
 package com.flowkode.hubldap;
 
 
+import org.apache.directory.api.ldap.model.constants.SchemaConstants;
 import org.apache.directory.api.ldap.model.cursor.Cursor;
 import org.apache.directory.api.ldap.model.cursor.CursorException;
+import org.apache.directory.api.ldap.model.entry.Attribute;
 import org.apache.directory.api.ldap.model.entry.DefaultEntry;
 import org.apache.directory.api.ldap.model.entry.DefaultModification;
 import org.apache.directory.api.ldap.model.entry.Entry;
 import org.apache.directory.api.ldap.model.entry.ModificationOperation;
+import org.apache.directory.api.ldap.model.entry.Value;
 import org.apache.directory.api.ldap.model.exception.LdapException;
-import org.apache.directory.api.ldap.model.exception.LdapNoSuchObjectException;
+import org.apache.directory.api.ldap.model.exception.LdapInvalidDnException;
 import org.apache.directory.api.ldap.model.filter.AndNode;
 import org.apache.directory.api.ldap.model.filter.EqualityNode;
 import org.apache.directory.api.ldap.model.filter.ExprNode;
@@ -29,6 +32,7 @@ import org.apache.directory.server.core.DefaultDirectoryService;
 import org.apache.directory.server.core.api.DirectoryService;
 import org.apache.directory.server.core.api.DnFactory;
 import org.apache.directory.server.core.api.InstanceLayout;
+import org.apache.directory.server.core.api.partition.Partition;
 import org.apache.directory.server.core.api.schema.SchemaPartition;
 import org.apache.directory.server.core.authn.AuthenticationInterceptor;
 import org.apache.directory.server.core.authn.Authenticator;
@@ -49,6 +53,8 @@ import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 public class HubLdap {
@@ -63,6 +69,8 @@ public class HubLdap {
 
     private final HubClient hubClient;
 
+    private final HubTrafficCounter trafficCounter;
+
     private final String adminPassword;
 
     private final String rootDomain;
@@ -83,9 +91,17 @@ public class HubLdap {
 
     private String certificatePassword;
 
+    private final Properties config;
+
+    private final Path snapshotFile;
+
+    private final Metrics metrics;
+
+    private MetricsExporter metricsExporter;
+
     private SchemaManager schemaManager;
 
-    private LdifPartition schemaLdifPartition;
+    private Partition schemaLdifPartition;
 
 
     private DnFactory dnFactory;
@@ -94,23 +110,33 @@ public class HubLdap {
 
     private DirectoryService directoryService;
 
+    private HubPartition hubPartition;
+
     public HubLdap(
             String rootDomain,
             String adminPassword,
             Path workDir,
+            Path snapshotFile,
             HubClient hubClient,
+            HubTrafficCounter trafficCounter,
             String serviceId,
             String serviceSecret,
             Path keystoreFile,
-            String certificatePassword
+            String certificatePassword,
+            Properties config,
+            Metrics metrics
     ) throws Exception {
         this.adminPassword = adminPassword;
         this.rootDomain = rootDomain;
         this.serviceId = serviceId;
         this.serviceSecret = serviceSecret;
         this.hubClient = hubClient;
+        this.trafficCounter = trafficCounter;
         this.keystoreFile = keystoreFile.toString();
         this.certificatePassword = certificatePassword;
+        this.config = config;
+        this.snapshotFile = snapshotFile;
+        this.metrics = metrics;
 
         final File normalizedWorkDir = workDir.toAbsolutePath().normalize().toFile();
         FileUtils.deleteDirectory(normalizedWorkDir);
@@ -120,26 +146,9 @@ public class HubLdap {
             CertificateUtils.generateKeyStore(keystoreFile, certificatePassword, "cn=HubLdap, o=HubLdap, c=US");
         }
 
+        final long configureStart = System.nanoTime();
         configure();
-    }
-
-    public void addStaticData(String dnStr, String... attrs) {
-        try {
-            //search
-            final Dn dn = dnFactory.create(dnStr);
-            try (final Cursor<Entry> search = directoryService.getAdminSession().search(dn, "(objectClass=*)")) {
-                //if it has next exists so we need to delete so we can add again
-                if (search.next()) {
-                    directoryService.getAdminSession().delete(dn);
-                }
-            }
-            catch (IOException | LdapNoSuchObjectException ignored) {
-            }
-            directoryService.getAdminSession().add(new DefaultEntry(schemaManager, dn, attrs));
-        }
-        catch (CursorException | LdapException e) {
-            throw new RuntimeException(e);
-        }
+        phaseFinished("configure", configureStart);
     }
 
     private void initDirectoryService() throws Exception {
@@ -175,19 +184,25 @@ public class HubLdap {
 
 
         //init and load schema
+        long phaseStart = System.nanoTime();
+        final boolean classpathSchema = "classpath".equals(config.getProperty("schema", "extract"));
         final Path schemaPath = instanceLayout.getPartitionsDirectory().toPath().resolve("schema");
+        final SchemaLoader loader;
+        if (classpathSchema) {
+            loader = new ClasspathSchemaLoader();
+        }
+        else {
+            SchemaLdifExtractor extractor = new DefaultSchemaLdifExtractor(instanceLayout.getPartitionsDirectory());
+            extractor.extractOrCopy();
 
-        SchemaLdifExtractor extractor = new DefaultSchemaLdifExtractor(instanceLayout.getPartitionsDirectory());
-        extractor.extractOrCopy();
-
-        copyLdif(schemaPath.resolve("ou=schema/cn=other/ou=attributetypes"), "memberOf.ldif", "m-oid=1.2.840.113556.1.4.222.ldif");
-        copyLdif(schemaPath.resolve("ou=schema/cn=other/ou=objectclasses"), "msPrincipal.ldif", "m-oid=1.2.840.113556.1.5.6.ldif");
-
-        copyLdif(schemaPath.resolve("ou=schema/cn=other/ou=attributetypes"), "sshPublicKey.ldif", "m-oid=1.3.6.1.4.1.24552.500.1.1.1.13.ldif");
-        copyLdif(schemaPath.resolve("ou=schema/cn=other/ou=objectclasses"), "ldapPublicKey.ldif", "m-oid=1.3.6.1.4.1.24552.500.1.1.2.0.ldif");
+            copyLdif(schemaPath.resolve("ou=schema/cn=other/ou=attributetypes"), "memberOf.ldif", "m-oid=1.2.840.113556.1.4.222.ldif");
+            copyLdif(schemaPath.resolve("ou=schema/cn=other/ou=objectclasses"), "msPrincipal.ldif", "m-oid=1.2.840.113556.1.5.6.ldif");
 
+            copyLdif(schemaPath.resolve("ou=schema/cn=other/ou=attributetypes"), "sshPublicKey.ldif", "m-oid=1.3.6.1.4.1.24552.500.1.1.1.13.ldif");
+            copyLdif(schemaPath.resolve("ou=schema/cn=other/ou=objectclasses"), "ldapPublicKey.ldif", "m-oid=1.3.6.1.4.1.24552.500.1.1.2.0.ldif");
 
-        SchemaLoader loader = new LdifSchemaLoader(schemaPath.toFile());
+            loader = new LdifSchemaLoader(schemaPath.toFile());
+        }
         schemaManager = new DefaultSchemaManager(loader.getAllSchemas());
         schemaManager.loadAllEnabled();
 
@@ -196,20 +211,72 @@ public class HubLdap {
         if (!errors.isEmpty()) {
             throw new Exception(I18n.err(I18n.ERR_317, Exceptions.printErrors(errors)));
         }
+        phaseFinished(classpathSchema ? "schema (classpath)" : "schema (extract)", phaseStart);
 
         dnFactory = new DefaultDnFactory(schemaManager, 100);
 
         dcDn = "dc=" + Arrays.stream(rootDomain.split("\\.")).collect(Collectors.joining(",dc="));
 
-        dataSynchronizer = new HubDataSynchronizer(directory, hubClient, serviceId, serviceSecret);
-        hubAutenticator = new HubAutenticator(dnFactory.create(dcDn), directory, hubClient, serviceId, serviceSecret);
+        final HubTokenManager tokenManager = new HubTokenManager(hubClient, serviceId, serviceSecret);
+        final SshKeyFetcher keyFetcher = new SshKeyFetcher(
+                hubClient,
+                tokenManager,
+                Integer.parseInt(config.getProperty("keyFetchConcurrency", "8")),
+                TimeUnit.SECONDS.toMillis(Long.parseLong(config.getProperty("keyFetchTimeout", "30")))
+        );
+        dataSynchronizer = new HubDataSynchronizer(
+                directory,
+                hubClient,
+                tokenManager,
+                keyFetcher,
+                trafficCounter,
+                Integer.parseInt(config.getProperty("pageSize", "100")),
+                TimeUnit.SECONDS.toMillis(Long.parseLong(config.getProperty("syncMinInterval", "30"))),
+                TimeUnit.SECONDS.toMillis(Long.parseLong(config.getProperty("syncMaxInterval", "600"))),
+                Integer.parseInt(config.getProperty("syncFetchThreads", "2")),
+                Integer.parseInt(config.getProperty("syncKeyThreads", "2")),
+                Integer.parseInt(config.getProperty("syncBuildThreads", "2")),
+                Integer.parseInt(config.getProperty("syncQueueSize", "4")),
+                metrics
+        );
+        final BindCache bindCache = new BindCache(
+                Long.parseLong(config.getProperty("bindCacheTtl", "0")),
+                Long.parseLong(config.getProperty("bindCacheMaxSize", "10000")),
+                metrics
+        );
+        final BindThrottle bindThrottle = new BindThrottle(
+                Integer.parseInt(config.getProperty("bindFailureLimit", "5")),
+                Integer.parseInt(config.getProperty("bindAddressFailureLimit", "0")),
+                Long.parseLong(config.getProperty("bindFailureWindow", "60")),
+                Long.parseLong(config.getProperty("bindLockout", "300")),
+                metrics
+        );
+        final BindCoalescer bindCoalescer = new BindCoalescer(
+                TimeUnit.SECONDS.toMillis(Long.parseLong(config.getProperty("bindWaitTimeout", "10"))),
+                metrics
+        );
+        final HubCallExecutor hubCallExecutor = new HubCallExecutor(
+                Integer.parseInt(config.getProperty("bindConcurrency", "64")),
+                TimeUnit.SECONDS.toMillis(Long.parseLong(config.getProperty("bindTimeout", "10"))),
+                metrics
+        );
+        hubAutenticator = new HubAutenticator(dnFactory.create(dcDn), directory, hubClient, tokenManager, bindCache, bindThrottle, bindCoalescer, hubCallExecutor, metrics);
 
 
-        schemaLdifPartition = new LdifPartition(schemaManager, dnFactory);
-        schemaLdifPartition.setPartitionPath(schemaPath.toUri());
+        if (classpathSchema) {
+            schemaLdifPartition = new ClasspathSchemaPartition(schemaManager, dnFactory);
+            schemaLdifPartition.setSuffixDn(dnFactory.create(SchemaConstants.OU_SCHEMA));
+        }
+        else {
+            final LdifPartition ldifPartition = new LdifPartition(schemaManager, dnFactory);
+            ldifPartition.setPartitionPath(schemaPath.toUri());
+            schemaLdifPartition = ldifPartition;
+        }
 
 
+        phaseStart = System.nanoTime();
         initDirectoryService();
+        phaseFinished("directoryService", phaseStart);
         //change admin password
         directoryService.getAdminSession().modify(
                 new Dn("uid=admin,ou=system"),
@@ -222,10 +289,31 @@ public class HubLdap {
 //                new DefaultModification(ModificationOperation.REPLACE_ATTRIBUTE, "m-disabled", "FALSE")
 //        );
 
+        phaseStart = System.nanoTime();
         addHubPartition();
+        phaseFinished("hubPartition", phaseStart);
+        registerMetrics();
         buildLdapServer();
     }
 
+    private void registerMetrics() {
+        metrics.describe("hubldap_entries", "Entries in the published snapshot.");
+        metrics.gauge("hubldap_entries", () -> hubPartition.getSnapshot().getUserLogins().size(), "type", "user");
+        metrics.gauge("hubldap_entries", () -> hubPartition.getSnapshot().getGroupCount(), "type", "group");
+        metrics.gauge("hubldap_entries", () -> hubPartition.getSnapshot().getEntries().size(), "type", "all");
+        metrics.describe("hubldap_snapshot_version", "Version of the published snapshot.");
+        metrics.gauge("hubldap_snapshot_version", () -> hubPartition.getSnapshot().getVersion());
+
+        metricsExporter = new MetricsExporter(metrics);
+        if (Boolean.parseBoolean(config.getProperty("metricsJmx", "true"))) {
+            metricsExporter.registerJmx();
+        }
+    }
+
+    private static void phaseFinished(String phase, long startNanos) {
+        LOGGER.info("Startup phase {} took {} ms.", phase, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+    }
+
     private void copyLdif(Path destinationDir, String sourceName, String destinationName) throws IOException {
         Files.createDirectories(destinationDir);
         try (
@@ -237,22 +325,33 @@ public class HubLdap {
     }
 
     private void addHubPartition() throws LdapException {
-        HubPartition hubPartition = new HubPartition(
+        if (config.getProperty("partition") != null) {
+            LOGGER.warn("The partition setting is no longer used, hub data is kept in memory and persisted to snapshotFile.");
+        }
+        hubPartition = new HubPartition(
                 schemaManager,
                 dnFactory,
                 directoryService,
-                instanceLayout.getPartitionsDirectory().toPath().resolve("hub").toUri()
+                new SnapshotFile(snapshotFile, schemaManager, dnFactory),
+                new SearchCache(
+                        Long.parseLong(config.getProperty("searchCacheMaxEntries", "100000")),
+                        Integer.parseInt(config.getProperty("searchCacheMaxResult", "1000")),
+                        metrics
+                ),
+                Arrays.stream(config.getProperty("indexedAttributes", "uid,mail,cn,description,member,memberOf").split("[,\\s]+"))
+                      .filter(a -> !a.isEmpty())
+                      .collect(Collectors.toList())
         );
         Dn suffixDn = dnFactory.create(dcDn);
         hubPartition.setSuffixDn(suffixDn);
 
         directoryService.addPartition(hubPartition);
-        hubPartition.populate();
 
         final AuthenticationInterceptor authenticationInterceptor = (AuthenticationInterceptor) directoryService.getInterceptor("authenticationInterceptor");
         final Set<Authenticator> authenticators = authenticationInterceptor.getAuthenticators();
         authenticators.add(hubAutenticator);
         authenticationInterceptor.setAuthenticators(authenticators.toArray(new Authenticator[0])); //must use this one, read the sources if you want to know why
+        directoryService.addFirst(new HubBindInterceptor(hubAutenticator));
     }
 
 
@@ -275,20 +374,113 @@ public class HubLdap {
     }
 
     public void start() throws Exception {
+        final long phaseStart = System.nanoTime();
         ldapServer.start();
+        phaseFinished("ldapServer", phaseStart);
+        final int adminPort = Integer.parseInt(config.getProperty("adminPort", "0"));
+        if (adminPort > 0) {
+            new AdminHttpServer(config.getProperty("adminHost", "127.0.0.1"), adminPort, metrics, dataSynchronizer).start();
+        }
         dataSynchronizer.startSync();
         LOGGER.info("Started...");
     }
 
     private class DirectoryImpl implements Directory {
 
+        //group id -> group dn, kept up to date as groups are written and deleted
+        private final Map<String, Dn> groupDns = new ConcurrentHashMap<>();
+
+        //entries of the next snapshot, copied from the published one on the first write of a cycle
+        private Map<String, Entry> staged;
+
+        //dns written since the last publish, their cached binds are dropped once the change is visible
+        private final Set<Dn> changed = new HashSet<>();
+
+        private Map<String, Entry> staged() {
+            if (staged == null) {
+                staged = new HashMap<>(hubPartition.getSnapshot().getEntries());
+            }
+            return staged;
+        }
+
+        //entries as the next snapshot will hold them, reading does not copy the published ones
+        private Map<String, Entry> entries() {
+            return staged != null ? staged : hubPartition.getSnapshot().getEntries();
+        }
+
         @Override
         public void delete(Dn dn) {
+            if (entries().containsKey(dn.getNormName())) {
+                staged().remove(dn.getNormName());
+                groupDns.values().removeIf(dn::equals);
+                changed.add(dn);
+            }
+        }
+
+        @Override
+        public void publish() {
+            //nothing was added, modified or removed, the published snapshot is still current
+            if (staged == null || changed.isEmpty()) {
+                staged = null;
+                return;
+            }
+            try {
+                final DirectorySnapshot snapshot = hubPartition.publish(staged);
+                LOGGER.info("Published snapshot version {}.", snapshot.getVersion());
+                changed.forEach(HubLdap.this::entryChanged);
+            }
+            catch (LdapException e) {
+                LOGGER.error("Could not publish snapshot, keeping the previous one.", e);
+            }
+            finally {
+                staged = null;
+                changed.clear();
+            }
+        }
+
+        private PreparedEntry prepare(String dnStr, Set<String> preserved, String... attrs) {
+            try {
+                return new PreparedEntry(new DefaultEntry(schemaManager, dnFactory.create(dnStr), attrs), preserved);
+            }
+            catch (LdapException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        /**
+         * Brings the staged entry in line with the prepared one, preserved attributes are only written when the entry is created.
+         */
+        @Override
+        public Change stage(PreparedEntry prepared) {
             try {
-                directoryService.getAdminSession().delete(dn);
+                final Entry desired = prepared.getEntry();
+                final Dn dn = desired.getDn();
+                final Entry current = entries().get(dn.getNormName());
+                if (current == null) {
+                    staged().put(dn.getNormName(), desired);
+                    changed.add(dn);
+                    return Change.ADDED;
+                }
+
+                for (String name : prepared.getPreserved()) {
+                    final Attribute attribute = current.get(name);
+                    if (attribute != null) {
+                        desired.put(attribute);
+                    }
+                }
+                if (sameUserAttributes(current, desired)) {
+                    return Change.UNCHANGED;
+                }
+                final Attribute entryUuid = current.get(SchemaConstants.ENTRY_UUID_AT);
+                if (entryUuid != null) {
+                    desired.put(entryUuid);
+                }
+                staged().put(dn.getNormName(), desired);
+                changed.add(dn);
+                return Change.MODIFIED;
             }
             catch (LdapException e) {
-                LOGGER.error("Failed to delete: " + dn, e);
+                throw new RuntimeException(e);
             }
         }
 
@@ -313,13 +505,20 @@ public class HubLdap {
             }
         }
 
-        private Dn findGroup(String groupId) {
+        @Override
+        public Dn findGroup(String groupId) {
+            final Dn groupDn = groupDns.get(groupId);
+            if (groupDn != null) {
+                return groupDn;
+            }
             try (final Cursor<Entry> search = search(dnFactory.create(dcDn), new AndNode(
                     new EqualityNode<String>("objectClass", "groupOfNames"),
                     new EqualityNode<String>("description", groupId)
             ))) {
                 if (search != null && search.next()) {
-                    return search.get().getDn();
+                    final Dn dn = search.get().getDn();
+                    groupDns.put(groupId, dn);
+                    return dn;
                 }
             }
             catch (IOException | LdapException | CursorException e) {
@@ -339,29 +538,62 @@ public class HubLdap {
         }
 
         @Override
-        public void addGroup(String name, String id) {
+        public Change addGroup(String name, String id, Set<String> members) {
             final Set<String> attributes = new HashSet<>();
+            //unknown members are kept as they are
+            final Set<String> preserved = new HashSet<>();
+            if (members == null) {
+                preserved.add("member");
+            }
+            else {
+                attributes.addAll(members.stream()
+                                         .map(m -> "member:" + userDn(m))
+                                         .collect(Collectors.toSet()));
+            }
+            if (attributes.isEmpty()) {
+                attributes.add("member: ");
+            }
             attributes.add("objectClass:top");
             attributes.add("objectClass:groupOfNames");
-            attributes.add("member: ");
             attributes.add("cn:" + name);
             attributes.add("description:" + id);
-            addStaticData("cn=" + name + ",ou=Groups," + dcDn, attributes.toArray(new String[0]));
+            final Change change = stage(prepare(groupDn(name), preserved, attributes.toArray(new String[0])));
+            expectGroup(name, id);
+            return change;
         }
 
         @Override
-        public void addUser(String name, String id, String mail, String login, Set<String> groups, Set<String> publicKeys) {
-            final String userDn = "cn=" + name + ",ou=Users," + dcDn;
+        public void expectGroup(String name, String id) {
+            try {
+                groupDns.put(id, dnFactory.create(groupDn(name)));
+            }
+            catch (LdapInvalidDnException e) {
+                LOGGER.error("Invalid group dn: " + groupDn(name), e);
+            }
+        }
 
+        private String groupDn(String name) {
+            return "cn=" + name + ",ou=Groups," + dcDn;
+        }
+
+        @Override
+        public PreparedEntry prepareUser(String name, String id, String mail, String login, Set<String> groups, Set<String> publicKeys) {
             final Set<String> attributes = groups.stream()
                                                  .map(this::findGroup)
                                                  .filter(Objects::nonNull)
                                                  .map(g -> "memberOf:" + g)
                                                  .collect(Collectors.toSet());
 
-            attributes.addAll(publicKeys.stream()
-                                        .map(k -> "sshPublicKey:" + k)
-                                        .collect(Collectors.toSet()));
+            //unknown keys are kept as they are
+            final Set<String> preserved = new HashSet<>();
+            if (publicKeys == null) {
+                preserved.add("sshPublicKey");
+            }
+            else {
+                attributes.addAll(publicKeys.stream()
+                                            .map(k -> "sshPublicKey:" + k)
+                                            .collect(Collectors.toSet()));
+            }
 
             attributes.add("objectClass:top");
             attributes.add("objectClass:inetOrgPerson");
@@ -374,35 +606,58 @@ public class HubLdap {
             attributes.add("sn: .");
             attributes.add("mail:" + mail);
             attributes.add("uid:" + login);
-            addStaticData(userDn, attributes.toArray(new String[0]));
-
-            //now add him as member on the groups
-            for (String group : groups) {
-                final Dn groupDn = findGroup(group);
-                if (groupDn != null) {
-                    try {
-                        final DefaultModification defaultModification = new DefaultModification(ModificationOperation.ADD_ATTRIBUTE, "member", userDn);
-                        directoryService.getAdminSession().modify(groupDn, defaultModification);
-                    }
-                    catch (LdapException e) {
-                        LOGGER.warn("Could not add user {} to group {}", userDn, groupDn);
-                        LOGGER.warn(e.getMessage(), e);
-                    }
-                }
-            }
+            return prepare(userDn(name), preserved, attributes.toArray(new String[0]));
+        }
+
+        private String userDn(String name) {
+            return "cn=" + name + ",ou=Users," + dcDn;
         }
 
         @Override
         public String getUsername(Dn dn) {
-            try (final Cursor<Entry> search = search(dn, new EqualityNode<String>("objectClass", "person"))) {
-                if (search != null && search.next()) {
-                    return search.get().get("uid").getString();
-                }
+            return hubPartition.getSnapshot().getUserLogins().get(dn.getNormName());
+        }
+    }
+
+    Directory getDirectory() {
+        return directory;
+    }
+
+    HubDataSynchronizer getDataSynchronizer() {
+        return dataSynchronizer;
+    }
+
+    DirectoryService getDirectoryService() {
+        return directoryService;
+    }
+
+    private void entryChanged(Dn dn) {
+        hubAutenticator.invalidate(dn);
+    }
+
+    private static boolean sameUserAttributes(Entry current, Entry desired) {
+        for (Attribute attribute : desired) {
+            if (attribute.getAttributeType().isUser() && !sameValues(current.get(attribute.getAttributeType()), attribute)) {
+                return false;
             }
-            catch (IOException | LdapException | CursorException e) {
-                LOGGER.error("Could not find user with cn: " + dn.toString(), e);
+        }
+        for (Attribute attribute : current) {
+            if (attribute.getAttributeType().isUser() && !desired.containsAttribute(attribute.getAttributeType())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean sameValues(Attribute current, Attribute desired) {
+        if (current == null || current.size() != desired.size()) {
+            return false;
+        }
+        for (Value value : desired) {
+            if (!current.contains(value)) {
+                return false;
             }
-            return null;
         }
+        return true;
     }
 }
@@ -0,0 +1,51 @@
+package com.flowkode.hubldap;
+
+import okhttp3.Interceptor;
+import okhttp3.Request;
+import okhttp3.Response;
+import retrofit2.Invocation;
+
+import java.io.IOException;
+
+/**
+ * Times every Hub call per {@link HubClient} method and counts the ones that fail.
+ */
+public class HubMetricsInterceptor implements Interceptor {
+
+    private final Metrics metrics;
+
+    public HubMetricsInterceptor(Metrics metrics) {
+        this.metrics = metrics;
+        metrics.describe("hubldap_hub_request_seconds", "Latency of Hub API calls by HubClient method.");
+        metrics.describe("hubldap_hub_errors_total", "Hub API calls that failed, by HubClient method and reason.");
+    }
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        final Request request = chain.request();
+        final String endpoint = endpoint(request);
+        final long start = System.nanoTime();
+        try {
+            final Response response = chain.proceed(request);
+            if (!response.isSuccessful()) {
+                metrics.counter("hubldap_hub_errors_total", "endpoint", endpoint, "reason", Integer.toString(response.code())).increment();
+            }
+            return response;
+        }
+        catch (IOException e) {
+            metrics.counter("hubldap_hub_errors_total", "endpoint", endpoint, "reason", "io").increment();
+            throw e;
+        }
+        finally {
+            metrics.time("hubldap_hub_request_seconds", start, "endpoint", endpoint);
+        }
+    }
+
+    /**
+     * The {@link HubClient} method a request was made through.
+     */
+    static String endpoint(Request request) {
+        final Invocation invocation = request.tag(Invocation.class);
+        return invocation != null ? invocation.method().getName() : "other";
+    }
+}
@@ -1,55 +1,395 @@
 package com.flowkode.hubldap;
 
+import org.apache.directory.api.ldap.model.constants.SchemaConstants;
 import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.Entry;
 import org.apache.directory.api.ldap.model.exception.LdapException;
-import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.exception.LdapOtherException;
+import org.apache.directory.api.ldap.model.exception.LdapUnwillingToPerformException;
+import org.apache.directory.api.ldap.model.message.ResultCodeEnum;
+import org.apache.directory.api.ldap.model.schema.AttributeType;
 import org.apache.directory.api.ldap.model.schema.SchemaManager;
 import org.apache.directory.server.core.api.DirectoryService;
 import org.apache.directory.server.core.api.DnFactory;
-import org.apache.directory.server.core.partition.impl.btree.jdbm.JdbmPartition;
+import org.apache.directory.server.core.api.filtering.EntryFilteringCursor;
+import org.apache.directory.server.core.api.interceptor.context.*;
+import org.apache.directory.server.core.api.partition.*;
+import org.apache.directory.server.core.partition.impl.avl.AvlPartition;
+import org.apache.directory.server.core.partition.impl.btree.AbstractBTreePartition;
+import org.apache.directory.server.xdbm.Index;
+import org.apache.directory.server.xdbm.impl.avl.AvlIndex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
-import java.net.URI;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
-public class HubPartition extends JdbmPartition {
+/**
+ * Read only partition serving the current {@link DirectorySnapshot}, new data is published by swapping in a freshly built snapshot.
+ * <p>
+ * Snapshots are kept in memory only, {@link SnapshotFile} is what survives a restart.
+ */
+public class HubPartition extends AbstractPartition {
 
+    private static final Logger LOGGER = LoggerFactory.getLogger(HubPartition.class);
 
     private final DirectoryService directoryService;
 
-    public HubPartition(SchemaManager schemaManager, DnFactory dnFactory, DirectoryService directoryService, URI partitionPath) {
-        super(schemaManager, dnFactory);
-        this.directoryService = directoryService;
+    private final SnapshotFile snapshotFile;
+
+    private final SearchCache searchCache;
+
+    //objectClass is always indexed by the partition itself
+    private final List<String> indexedAttributes = new ArrayList<>();
+
+    private final AtomicReference<DirectorySnapshot> current = new AtomicReference<>();
 
+    public HubPartition(SchemaManager schemaManager, DnFactory dnFactory, DirectoryService directoryService, SnapshotFile snapshotFile, SearchCache searchCache, List<String> indexedAttributes) {
+        this.schemaManager = schemaManager;
+        this.dnFactory = dnFactory;
+        this.directoryService = directoryService;
+        this.snapshotFile = snapshotFile;
+        this.searchCache = searchCache;
+        for (String attribute : indexedAttributes) {
+            final AttributeType attributeType = schemaManager.getAttributeType(attribute);
+            if (attributeType == null || attributeType.getEquality() == null) {
+                LOGGER.warn("Not indexing {}, it is not an attribute with an equality match.", attribute);
+            }
+            else {
+                this.indexedAttributes.add(attribute);
+            }
+        }
         setId("hub");
-        setPartitionPath(partitionPath);
     }
 
-    private void addStaticData(String dnStr, String... attrs) {
-        try {
-            directoryService.getAdminSession().add(new DefaultEntry(schemaManager, dnFactory.create(dnStr), attrs));
-        }
-        catch (LdapException e) {
-            throw new RuntimeException(e);
+    public DirectorySnapshot getSnapshot() {
+        return current.get();
+    }
+
+    /**
+     * Builds a snapshot holding exactly {@code entries} and makes it visible to clients.
+     */
+    public synchronized DirectorySnapshot publish(Map<String, Entry> entries) throws LdapException {
+        final DirectorySnapshot next = publish(entries, current.get().getVersion() + 1);
+        snapshotFile.write(getSuffixDn(), next.getVersion(), next.getEntries());
+        return next;
+    }
+
+    private DirectorySnapshot publish(Map<String, Entry> entries, long version) throws LdapException {
+        final DirectorySnapshot next = build(entries, version);
+        final DirectorySnapshot previous = current.getAndSet(next);
+        searchCache.invalidateAll();
+        if (previous != null) {
+            //destroyed right away or once the last read still on it is done
+            release(previous);
         }
+        LOGGER.debug("Published snapshot version {} with {} entries.", next.getVersion(), entries.size());
+        return next;
     }
 
-    public void populate() {
+    @Override
+    protected void doInit() throws LdapException {
+        //serve the last synced data until the first sync after a restart is done
+        final long start = System.nanoTime();
+        final SnapshotFile.Contents stored = snapshotFile.read(getSuffixDn());
+        if (stored != null) {
+            try {
+                publish(stored.getEntries(), stored.getVersion());
+                LOGGER.info("Warm start served snapshot version {} with {} entries after {} ms.", stored.getVersion(), stored.getEntries().size(), (System.nanoTime() - start) / 1_000_000);
+                return;
+            }
+            catch (LdapException e) {
+                LOGGER.warn("Could not load stored snapshot, starting empty.", e);
+                snapshotFile.delete();
+            }
+        }
+
         final String rootDn = getSuffixDn().getName();
-        addStaticData(rootDn,
+        final Map<String, Entry> entries = new HashMap<>();
+        addStaticData(entries, rootDn,
                       "objectClass:top",
                       "objectClass:domain",
                       "dc:" + rootDn.substring(3, rootDn.indexOf(",dc="))
         );
-
-        addStaticData("ou=Users," + rootDn,
+        addStaticData(entries, "ou=Users," + rootDn,
                       "objectClass:top",
                       "objectClass:organizationalUnit",
                       "ou:Users"
         );
-        addStaticData("ou=Groups," + rootDn,
+        addStaticData(entries, "ou=Groups," + rootDn,
                       "objectClass:top",
                       "objectClass:organizationalUnit",
                       "ou:Groups"
         );
+        publish(entries, 1);
+    }
+
+    private void addStaticData(Map<String, Entry> entries, String dnStr, String... attrs) throws LdapException {
+        final Entry entry = new DefaultEntry(schemaManager, dnFactory.create(dnStr), attrs);
+        entries.put(entry.getDn().getNormName(), entry);
+    }
+
+    private DirectorySnapshot build(Map<String, Entry> entries, long version) throws LdapException {
+        final AvlPartition partition = createPartition();
+        partition.setSuffixDn(getSuffixDn());
+        partition.initialize();
+
+        //parents have to exist before their children
+        final List<Entry> ordered = new ArrayList<>(entries.values());
+        ordered.sort(Comparator.comparingInt(e -> e.getDn().size()));
+
+        final Map<String, String> userLogins = new HashMap<>();
+        int groupCount = 0;
+        final PartitionTxn txn = partition.beginWriteTransaction();
+        try {
+            for (Entry entry : ordered) {
+                //operational attributes are stamped once so they stay stable across snapshots
+                if (!entry.containsAttribute(SchemaConstants.ENTRY_UUID_AT)) {
+                    entry.add(SchemaConstants.ENTRY_UUID_AT, UUID.randomUUID().toString());
+                }
+                if (!entry.containsAttribute(SchemaConstants.ENTRY_CSN_AT)) {
+                    entry.add(SchemaConstants.ENTRY_CSN_AT, directoryService.getCSN().toString());
+                }
+
+                Entry toAdd = entry;
+                if (entry.getDn().equals(getSuffixDn())) {
+                    //the naming context entry tells clients which version they are reading
+                    toAdd = entry.clone();
+                    toAdd.put("description", "snapshotVersion=" + version);
+                }
+                else if (entry.hasObjectClass("person") && entry.containsAttribute("uid")) {
+                    userLogins.put(entry.getDn().getNormName(), entry.get("uid").getString());
+                }
+                else if (entry.hasObjectClass("groupOfNames")) {
+                    groupCount++;
+                }
+
+                //no session, so the build never takes the server wide operation lock
+                final AddOperationContext addContext = new AddOperationContext(null, toAdd);
+                addContext.setPartition(partition);
+                addContext.setTransaction(txn);
+                partition.add(addContext);
+            }
+            txn.commit();
+        }
+        catch (LdapException | IOException e) {
+            abort(txn);
+            destroy(new DirectorySnapshot(version, partition, entries, userLogins, groupCount));
+            if (e instanceof LdapException) {
+                throw (LdapException) e;
+            }
+            throw new LdapOtherException("Could not build snapshot " + version, e);
+        }
+        return new DirectorySnapshot(version, partition, Collections.unmodifiableMap(entries), Collections.unmodifiableMap(userLogins), groupCount);
+    }
+
+    private AvlPartition createPartition() {
+        final AvlPartition partition = new AvlPartition(schemaManager, dnFactory);
+        //a typed set instead of the generic varargs of addIndexedAttributes
+        final Set<Index<?, String>> indexes = new HashSet<>();
+        for (String attribute : indexedAttributes) {
+            //no reverse table, that one only serves modifies and deletes and a snapshot never sees any
+            indexes.add(new AvlIndex<>(attribute, false));
+        }
+        partition.setIndexedAttributes(indexes);
+        partition.setId("hub");
+        return partition;
+    }
+
+    private static void release(DirectorySnapshot snapshot) {
+        if (snapshot.release()) {
+            LOGGER.debug("Destroying snapshot version {}.", snapshot.getVersion());
+            destroy(snapshot);
+        }
+    }
+
+    private static void abort(PartitionTxn txn) {
+        try {
+            txn.abort();
+        }
+        catch (IOException e) {
+            LOGGER.warn("Could not abort snapshot transaction.", e);
+        }
+    }
+
+    private static void destroy(DirectorySnapshot snapshot) {
+        try {
+            final AbstractBTreePartition partition = snapshot.getPartition();
+            if (partition.isInitialized()) {
+                partition.destroy(partition.beginReadTransaction());
+            }
+        }
+        catch (LdapException e) {
+            LOGGER.warn("Could not destroy snapshot " + snapshot.getVersion(), e);
+        }
+    }
+
+    /**
+     * Pins the snapshot a read runs against, reads stay on the snapshot their transaction was started on.
+     */
+    private DirectorySnapshot acquire(PartitionTxn txn) {
+        if (txn instanceof SnapshotReadTxn) {
+            final DirectorySnapshot snapshot = ((SnapshotReadTxn) txn).snapshot;
+            //the transaction holds a reference, unless it was already closed
+            if (snapshot != null && snapshot.retain()) {
+                return snapshot;
+            }
+        }
+        return acquire();
+    }
+
+    private DirectorySnapshot acquire() {
+        while (true) {
+            final DirectorySnapshot snapshot = current.get();
+            if (snapshot == null) {
+                throw new IllegalStateException("The hub partition has no snapshot to read.");
+            }
+            //losing the race against a publish destroying it just means reading the newer one
+            if (snapshot.retain()) {
+                return snapshot;
+            }
+        }
+    }
+
+    private <T> T read(OperationContext context, Read<T> read) throws LdapException {
+        final DirectorySnapshot snapshot = acquire(context.getTransaction());
+        try {
+            return read.run(snapshot.getPartition());
+        }
+        finally {
+            release(snapshot);
+        }
+    }
+
+    @Override
+    public PartitionReadTxn beginReadTransaction() {
+        return new SnapshotReadTxn(current.get() != null ? acquire() : null);
+    }
+
+    @Override
+    public PartitionWriteTxn beginWriteTransaction() {
+        return new PartitionWriteTxn();
+    }
+
+    @Override
+    public EntryFilteringCursor search(SearchOperationContext searchContext) throws LdapException {
+        //the cursor outlives the transaction, so it holds its own reference until it is closed
+        final DirectorySnapshot snapshot = acquire(searchContext.getTransaction());
+        try {
+            final EntryFilteringCursor cursor = searchCache.search(snapshot.getVersion(), searchContext, schemaManager, () -> snapshot.getPartition().search(searchContext));
+            return new SnapshotCursor(cursor, () -> release(snapshot));
+        }
+        catch (LdapException | RuntimeException e) {
+            release(snapshot);
+            throw e;
+        }
+    }
+
+    @Override
+    public Entry lookup(LookupOperationContext lookupContext) throws LdapException {
+        return read(lookupContext, partition -> partition.lookup(lookupContext));
+    }
+
+    @Override
+    public boolean hasEntry(HasEntryOperationContext hasEntryContext) throws LdapException {
+        return read(hasEntryContext, partition -> partition.hasEntry(hasEntryContext));
+    }
+
+    @Override
+    public Subordinates getSubordinates(PartitionTxn txn, Entry entry) throws LdapException {
+        final DirectorySnapshot snapshot = acquire(txn);
+        try {
+            return snapshot.getPartition().getSubordinates(txn, entry);
+        }
+        finally {
+            release(snapshot);
+        }
+    }
+
+    @Override
+    public void unbind(UnbindOperationContext unbindContext) {
+        //nothing to release
+    }
+
+    @Override
+    public void add(AddOperationContext addContext) throws LdapException {
+        throw readOnly();
+    }
+
+    @Override
+    public void modify(ModifyOperationContext modifyContext) throws LdapException {
+        throw readOnly();
+    }
+
+    @Override
+    public Entry delete(DeleteOperationContext deleteContext) throws LdapException {
+        throw readOnly();
+    }
+
+    @Override
+    public void rename(RenameOperationContext renameContext) throws LdapException {
+        throw readOnly();
+    }
+
+    @Override
+    public void move(MoveOperationContext moveContext) throws LdapException {
+        throw readOnly();
+    }
+
+    @Override
+    public void moveAndRename(MoveAndRenameOperationContext moveAndRenameContext) throws LdapException {
+        throw readOnly();
+    }
+
+    private static LdapUnwillingToPerformException readOnly() {
+        return new LdapUnwillingToPerformException(ResultCodeEnum.UNWILLING_TO_PERFORM, "The hub partition is read only, its data comes from Hub.");
+    }
+
+    @Override
+    public void saveContextCsn(PartitionTxn partitionTxn) {
+        //snapshots carry their own csn
+    }
+
+    @Override
+    protected synchronized void doDestroy(PartitionTxn partitionTxn) {
+        final DirectorySnapshot snapshot = current.getAndSet(null);
+        if (snapshot != null) {
+            release(snapshot);
+        }
+    }
 
+    @Override
+    protected void doRepair() {
+        //snapshots are rebuilt from Hub, there is nothing to repair
+    }
+
+    private interface Read<T> {
+
+        T run(AbstractBTreePartition partition) throws LdapException;
+    }
+
+    private static class SnapshotReadTxn extends PartitionReadTxn {
+
+        private final DirectorySnapshot snapshot;
+
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        private SnapshotReadTxn(DirectorySnapshot snapshot) {
+            this.snapshot = snapshot;
+        }
+
+        @Override
+        public boolean isClosed() {
+            return closed.get();
+        }
+
+        @Override
+        public void close() {
+            if (closed.compareAndSet(false, true) && snapshot != null) {
+                release(snapshot);
+            }
+        }
     }
 }
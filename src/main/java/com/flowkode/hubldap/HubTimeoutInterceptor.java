@@ -0,0 +1,35 @@
+package com.flowkode.hubldap;
+
+import okhttp3.Interceptor;
+import okhttp3.Response;
+import retrofit2.Invocation;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Applies connect and read timeouts per {@link HubClient} method, e.g. a short one for binds and a long one for the
+ * sync listings.
+ */
+public class HubTimeoutInterceptor implements Interceptor {
+
+    //HubClient method name -> timeout in millis
+    private final Map<String, Integer> timeouts;
+
+    public HubTimeoutInterceptor(Map<String, Integer> timeouts) {
+        this.timeouts = timeouts;
+    }
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        final Invocation invocation = chain.request().tag(Invocation.class);
+        final Integer timeout = invocation != null ? timeouts.get(invocation.method().getName()) : null;
+        if (timeout == null) {
+            return chain.proceed(chain.request());
+        }
+        return chain.withConnectTimeout(timeout, TimeUnit.MILLISECONDS)
+                    .withReadTimeout(timeout, TimeUnit.MILLISECONDS)
+                    .proceed(chain.request());
+    }
+}
@@ -0,0 +1,105 @@
+package com.flowkode.hubldap;
+
+import com.flowkode.hubldap.data.AuthResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import retrofit2.Call;
+import retrofit2.Response;
+
+import java.io.IOException;
+import java.util.Base64;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Holds the service credentials and the bearer token obtained with them, the token is reused until shortly before it expires.
+ */
+public class HubTokenManager {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(HubTokenManager.class);
+
+    private static final long DEFAULT_EXPIRES_IN = TimeUnit.HOURS.toSeconds(1);
+
+    private static final long REFRESH_MARGIN = TimeUnit.MINUTES.toSeconds(1);
+
+    private final HubClient hubClient;
+
+    private final String serviceCredentials;
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        final Thread thread = new Thread(r, "hub-token");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private String token;
+
+    private long expiresAt;
+
+    private ScheduledFuture<?> scheduledRefresh;
+
+    public HubTokenManager(HubClient hubClient, String serviceId, String serviceSecret) {
+        this.hubClient = hubClient;
+        serviceCredentials = "Basic " + Base64.getEncoder().encodeToString((serviceId + ":" + serviceSecret).getBytes());
+    }
+
+    public String getServiceCredentials() {
+        return serviceCredentials;
+    }
+
+    public synchronized String getToken() throws IOException {
+        if (token == null || System.nanoTime() - expiresAt >= 0) {
+            refresh();
+        }
+        return token;
+    }
+
+    /**
+     * Executes the call with the current token, if Hub rejects the token it is refreshed and the call retried once.
+     */
+    public <T> Response<T> execute(Function<String, Call<T>> call) throws IOException {
+        final String currentToken = getToken();
+        final Response<T> response = call.apply(currentToken).execute();
+        if (response.code() != 401) {
+            return response;
+        }
+        LOGGER.debug("Token rejected, refreshing.");
+        return call.apply(refresh(currentToken)).execute();
+    }
+
+    private synchronized String refresh(String rejectedToken) throws IOException {
+        //another caller may have refreshed it already
+        if (rejectedToken.equals(token)) {
+            refresh();
+        }
+        return token;
+    }
+
+    private synchronized void refresh() throws IOException {
+        final Response<AuthResponse> response = hubClient.serviceLogin(serviceCredentials).execute();
+        if (!response.isSuccessful()) {
+            throw new IOException("Got code " + response.code() + " when logging in.");
+        }
+        final long expiresIn = response.body().getExpiresIn() > 0 ? response.body().getExpiresIn() : DEFAULT_EXPIRES_IN;
+        final long refreshIn = Math.max(expiresIn - REFRESH_MARGIN, expiresIn / 2);
+        token = "Bearer " + response.body().getAccessToken();
+        expiresAt = System.nanoTime() + TimeUnit.SECONDS.toNanos(refreshIn);
+
+        if (scheduledRefresh != null) {
+            scheduledRefresh.cancel(false);
+        }
+        scheduledRefresh = scheduler.schedule(this::backgroundRefresh, refreshIn, TimeUnit.SECONDS);
+    }
+
+    private synchronized void backgroundRefresh() {
+        try {
+            refresh();
+        }
+        catch (IOException e) {
+            LOGGER.warn("Could not refresh service token: {}", e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package com.flowkode.hubldap;
+
+import okhttp3.Interceptor;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.Buffer;
+import okio.ForwardingSource;
+import okio.Okio;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts the response bytes received from Hub as they come off the wire, per {@link HubClient} method so sync traffic
+ * can be told apart from binds running at the same time.
+ */
+public class HubTrafficCounter implements Interceptor {
+
+    private final Map<String, LongAdder> bytes = new ConcurrentHashMap<>();
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        final Response response = chain.proceed(chain.request());
+        final ResponseBody body = response.body();
+        if (body == null) {
+            return response;
+        }
+        final LongAdder endpointBytes = bytes.computeIfAbsent(HubMetricsInterceptor.endpoint(chain.request()), e -> new LongAdder());
+        final ForwardingSource countingSource = new ForwardingSource(body.source()) {
+            @Override
+            public long read(Buffer sink, long byteCount) throws IOException {
+                final long read = super.read(sink, byteCount);
+                if (read > 0) {
+                    endpointBytes.add(read);
+                }
+                return read;
+            }
+        };
+        return response.newBuilder()
+                       .body(ResponseBody.create(body.contentType(), body.contentLength(), Okio.buffer(countingSource)))
+                       .build();
+    }
+
+    /**
+     * Bytes received so far by calls made through the given {@link HubClient} methods.
+     */
+    public long getBytes(Collection<String> endpoints) {
+        long total = 0;
+        for (String endpoint : endpoints) {
+            final LongAdder endpointBytes = bytes.get(endpoint);
+            if (endpointBytes != null) {
+                total += endpointBytes.sum();
+            }
+        }
+        return total;
+    }
+}
@@ -0,0 +1,97 @@
+package com.flowkode.hubldap;
+
+import okhttp3.*;
+
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Builds the HTTP client used for every Hub call from {@code hubLdap.properties}.
+ * <p>
+ * OkHttp already asks for gzip and unpacks it transparently, {@link HubTrafficCounter} sits on the network side so it
+ * counts compressed bytes.
+ */
+public class HubTransport {
+
+    private static final String TIMEOUT_PREFIX = "hubTimeout.";
+
+    private HubTransport() {
+    }
+
+    public static OkHttpClient create(Properties config, Metrics metrics, HubTrafficCounter trafficCounter) {
+        final ConnectionPool connectionPool = new ConnectionPool(
+                Integer.parseInt(config.getProperty("hubMaxIdleConnections", "16")),
+                Long.parseLong(config.getProperty("hubKeepAlive", "300")),
+                TimeUnit.SECONDS
+        );
+        metrics.describe("hubldap_hub_connections", "Pooled Hub connections by state.");
+        metrics.gauge("hubldap_hub_connections", connectionPool::connectionCount, "state", "all");
+        metrics.gauge("hubldap_hub_connections", connectionPool::idleConnectionCount, "state", "idle");
+
+        final HubCircuitBreaker circuitBreaker = new HubCircuitBreaker(
+                Integer.parseInt(config.getProperty("hubBreakerFailures", "5")),
+                TimeUnit.SECONDS.toMillis(Long.parseLong(config.getProperty("hubBreakerOpen", "30"))),
+                metrics
+        );
+
+        return new OkHttpClient.Builder()
+                .connectionPool(connectionPool)
+                //HTTP/2 is negotiated through ALPN, so it only kicks in over https
+                .protocols(Boolean.parseBoolean(config.getProperty("hubHttp2", "true"))
+                           ? Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1)
+                           : Collections.singletonList(Protocol.HTTP_1_1))
+                .connectTimeout(Long.parseLong(config.getProperty("hubConnectTimeout", "5")), TimeUnit.SECONDS)
+                .readTimeout(Long.parseLong(config.getProperty("hubReadTimeout", "10")), TimeUnit.SECONDS)
+                .callTimeout(Long.parseLong(config.getProperty("hubCallTimeout", "30")), TimeUnit.SECONDS)
+                .eventListener(new ConnectionMetrics(metrics))
+                .addInterceptor(circuitBreaker)
+                .addInterceptor(new HubMetricsInterceptor(metrics))
+                .addInterceptor(new HubTimeoutInterceptor(endpointTimeouts(config)))
+                .addNetworkInterceptor(trafficCounter)
+                .build();
+    }
+
+    /**
+     * {@code hubTimeout.<HubClient method>=seconds}, binds get a short one unless configured otherwise.
+     */
+    private static Map<String, Integer> endpointTimeouts(Properties config) {
+        final Map<String, Integer> timeouts = new HashMap<>();
+        timeouts.put("userLogin", (int) TimeUnit.SECONDS.toMillis(5));
+        for (String name : config.stringPropertyNames()) {
+            if (name.startsWith(TIMEOUT_PREFIX)) {
+                timeouts.put(name.substring(TIMEOUT_PREFIX.length()), (int) TimeUnit.SECONDS.toMillis(Long.parseLong(config.getProperty(name))));
+            }
+        }
+        return timeouts;
+    }
+
+    /**
+     * Counts new connections against acquired ones, the difference is how often the pool was reused.
+     */
+    private static class ConnectionMetrics extends EventListener {
+
+        private final Metrics metrics;
+
+        private ConnectionMetrics(Metrics metrics) {
+            this.metrics = metrics;
+            metrics.describe("hubldap_hub_connections_opened_total", "New connections to Hub by protocol.");
+            metrics.describe("hubldap_hub_connections_acquired_total", "Connections taken for a Hub call, new or pooled.");
+        }
+
+        @Override
+        public void connectEnd(Call call, InetSocketAddress inetSocketAddress, Proxy proxy, Protocol protocol) {
+            metrics.counter("hubldap_hub_connections_opened_total", "protocol", protocol == null ? "unknown" : protocol.toString()).increment();
+        }
+
+        @Override
+        public void connectionAcquired(Call call, Connection connection) {
+            metrics.counter("hubldap_hub_connections_acquired_total").increment();
+        }
+    }
+}
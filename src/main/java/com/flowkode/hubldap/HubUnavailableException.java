@@ -0,0 +1,15 @@
+package com.flowkode.hubldap;
+
+import java.io.IOException;
+
+/**
+ * Thrown instead of calling Hub while {@link HubCircuitBreaker} is open.
+ */
+public class HubUnavailableException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    public HubUnavailableException(String message) {
+        super(message);
+    }
+}
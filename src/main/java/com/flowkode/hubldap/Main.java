@@ -1,5 +1,6 @@
 package com.flowkode.hubldap;
 
+import okhttp3.OkHttpClient;
 import retrofit2.Retrofit;
 import retrofit2.converter.gson.GsonConverterFactory;
 
@@ -24,6 +25,8 @@ public class Main {
         config.load(new FileReader(jarDir.resolve("hubLdap.properties").toFile()));
 
         final Path workDir = jarDir.resolve("work");
+        //outside the work dir, that one is wiped on every start
+        final Path snapshotFile = jarDir.resolve(config.getProperty("snapshotFile", "hub.snapshot"));
         final String hubUrl = config.getProperty("hubUrl");
         final String rootDomain = config.getProperty("rootDomain", "hub.local");
         final String adminPassword = config.getProperty("adminPassword", "admin");
@@ -31,13 +34,18 @@ public class Main {
         final String serviceSecret = config.getProperty("serviceSecret", "");
         final String certificatePassword = config.getProperty("certificatePassword", "secret");
 
+        final Metrics metrics = new Metrics();
+        final HubTrafficCounter trafficCounter = new HubTrafficCounter();
+        final OkHttpClient httpClient = HubTransport.create(config, metrics, trafficCounter);
+
         Retrofit retrofit = new Retrofit.Builder()
                 .baseUrl(hubUrl + "/api/rest/")
+                .client(httpClient)
                 .addConverterFactory(GsonConverterFactory.create())
                 .build();
 
         HubClient hubClient = retrofit.create(HubClient.class);
 
-        new HubLdap(rootDomain, adminPassword, workDir, hubClient, serviceId, serviceSecret, jarDir.resolve("keystore.p12"), certificatePassword).start();
+        new HubLdap(rootDomain, adminPassword, workDir, snapshotFile, hubClient, trafficCounter, serviceId, serviceSecret, jarDir.resolve("keystore.p12"), certificatePassword, config, metrics).start();
     }
 }
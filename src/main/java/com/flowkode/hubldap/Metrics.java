@@ -0,0 +1,187 @@
+package com.flowkode.hubldap;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Small registry of counters, gauges and latency histograms, exported by {@link MetricsExporter} and {@link AdminHttpServer}.
+ * <p>
+ * Series are keyed by metric name plus label pairs, e.g. {@code counter("hubldap_binds_total", "outcome", "success")}.
+ */
+public class Metrics {
+
+    //histogram bucket upper bounds in seconds
+    private static final double[] BUCKETS = {0.001, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60};
+
+    private final Map<Series, LongAdder> counters = new ConcurrentHashMap<>();
+
+    private final Map<Series, Supplier<? extends Number>> gauges = new ConcurrentHashMap<>();
+
+    private final Map<Series, Histogram> histograms = new ConcurrentHashMap<>();
+
+    private final Map<String, String> help = new ConcurrentHashMap<>();
+
+    public LongAdder counter(String name, String... labels) {
+        return counters.computeIfAbsent(new Series(name, labels), s -> new LongAdder());
+    }
+
+    public void gauge(String name, Supplier<? extends Number> value, String... labels) {
+        gauges.put(new Series(name, labels), value);
+    }
+
+    public Histogram histogram(String name, String... labels) {
+        return histograms.computeIfAbsent(new Series(name, labels), s -> new Histogram());
+    }
+
+    /**
+     * Records the time since {@code startNanos} in the histogram.
+     */
+    public void time(String name, long startNanos, String... labels) {
+        histogram(name, labels).record(System.nanoTime() - startNanos);
+    }
+
+    public void describe(String name, String text) {
+        help.put(name, text);
+    }
+
+    /**
+     * Renders every series in the Prometheus text exposition format.
+     */
+    public String toPrometheus() {
+        final SortedMap<String, StringBuilder> families = new TreeMap<>();
+        counters.forEach((series, value) -> family(families, series.name, "counter")
+                .append(series.name).append(series.labels()).append(' ').append(value.sum()).append('\n'));
+        gauges.forEach((series, value) -> family(families, series.name, "gauge")
+                .append(series.name).append(series.labels()).append(' ').append(value.get()).append('\n'));
+        histograms.forEach((series, histogram) -> {
+            final StringBuilder family = family(families, series.name, "histogram");
+            long cumulative = 0;
+            for (int i = 0; i < BUCKETS.length; i++) {
+                cumulative += histogram.buckets.get(i);
+                family.append(series.name).append("_bucket").append(series.labels("le", Double.toString(BUCKETS[i]))).append(' ').append(cumulative).append('\n');
+            }
+            family.append(series.name).append("_bucket").append(series.labels("le", "+Inf")).append(' ').append(histogram.getCount()).append('\n');
+            family.append(series.name).append("_sum").append(series.labels()).append(' ').append(histogram.getSumSeconds()).append('\n');
+            family.append(series.name).append("_count").append(series.labels()).append(' ').append(histogram.getCount()).append('\n');
+        });
+        final StringBuilder out = new StringBuilder();
+        families.values().forEach(out::append);
+        return out.toString();
+    }
+
+    private StringBuilder family(SortedMap<String, StringBuilder> families, String name, String type) {
+        return families.computeIfAbsent(name, n -> {
+            final StringBuilder family = new StringBuilder();
+            if (help.containsKey(n)) {
+                family.append("# HELP ").append(n).append(' ').append(help.get(n)).append('\n');
+            }
+            return family.append("# TYPE ").append(n).append(' ').append(type).append('\n');
+        });
+    }
+
+    /**
+     * Flat view of every series, histograms contribute their count and sum, used for JMX.
+     */
+    public SortedMap<String, Number> snapshot() {
+        final SortedMap<String, Number> values = new TreeMap<>();
+        counters.forEach((series, value) -> values.put(series.toString(), value.sum()));
+        gauges.forEach((series, value) -> values.put(series.toString(), value.get()));
+        histograms.forEach((series, histogram) -> {
+            values.put(series.name + "_count" + series.labels(), histogram.getCount());
+            values.put(series.name + "_sum" + series.labels(), histogram.getSumSeconds());
+        });
+        return values;
+    }
+
+    public static class Histogram {
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS.length);
+
+        private final LongAdder count = new LongAdder();
+
+        private final LongAdder sumNanos = new LongAdder();
+
+        public void record(long nanos) {
+            final double seconds = nanos / 1e9;
+            for (int i = 0; i < BUCKETS.length; i++) {
+                if (seconds <= BUCKETS[i]) {
+                    buckets.incrementAndGet(i);
+                    break;
+                }
+            }
+            count.increment();
+            sumNanos.add(nanos);
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        public double getSumSeconds() {
+            return sumNanos.sum() / (double) TimeUnit.SECONDS.toNanos(1);
+        }
+    }
+
+    private static class Series {
+
+        private final String name;
+
+        private final String[] labels;
+
+        private Series(String name, String... labels) {
+            if (labels.length % 2 != 0) {
+                throw new IllegalArgumentException("Labels must be name/value pairs: " + name);
+            }
+            this.name = name;
+            this.labels = labels;
+        }
+
+        private String labels(String... extra) {
+            if (labels.length == 0 && extra.length == 0) {
+                return "";
+            }
+            final StringBuilder out = new StringBuilder("{");
+            appendLabels(out, labels);
+            if (labels.length > 0 && extra.length > 0) {
+                out.append(',');
+            }
+            appendLabels(out, extra);
+            return out.append('}').toString();
+        }
+
+        private static void appendLabels(StringBuilder out, String[] pairs) {
+            for (int i = 0; i < pairs.length; i += 2) {
+                if (i > 0) {
+                    out.append(',');
+                }
+                out.append(pairs[i]).append("=\"").append(pairs[i + 1].replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+            }
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Series)) {
+                return false;
+            }
+            final Series other = (Series) o;
+            return name.equals(other.name) && Arrays.equals(labels, other.labels);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * name.hashCode() + Arrays.hashCode(labels);
+        }
+
+        @Override
+        public String toString() {
+            return name + labels();
+        }
+    }
+}
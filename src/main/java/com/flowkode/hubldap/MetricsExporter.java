@@ -0,0 +1,83 @@
+package com.flowkode.hubldap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.*;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.SortedMap;
+
+/**
+ * Publishes {@link Metrics} as a JMX bean, the Prometheus endpoint is served by {@link AdminHttpServer}.
+ */
+public class MetricsExporter implements DynamicMBean {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MetricsExporter.class);
+
+    private static final String OBJECT_NAME = "com.flowkode.hubldap:type=Metrics";
+
+    private final Metrics metrics;
+
+    public MetricsExporter(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public void registerJmx() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+        }
+        catch (JMException e) {
+            LOGGER.warn("Could not register metrics with JMX.", e);
+        }
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        final Number value = metrics.snapshot().get(attribute);
+        if (value == null) {
+            throw new AttributeNotFoundException(attribute);
+        }
+        return value.doubleValue();
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        final SortedMap<String, Number> snapshot = metrics.snapshot();
+        final AttributeList list = new AttributeList();
+        for (String attribute : attributes) {
+            final Number value = snapshot.get(attribute);
+            if (value != null) {
+                list.add(new Attribute(attribute, value.doubleValue()));
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Metrics are read only: " + attribute.getName());
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        //rebuilt on every call so series created after registration show up
+        final SortedMap<String, Number> snapshot = metrics.snapshot();
+        final MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[snapshot.size()];
+        int i = 0;
+        for (Map.Entry<String, Number> entry : snapshot.entrySet()) {
+            attributes[i++] = new MBeanAttributeInfo(entry.getKey(), "double", entry.getKey(), true, false, false);
+        }
+        return new MBeanInfo(getClass().getName(), "HubLdap metrics", attributes, null, null, null);
+    }
+}
@@ -0,0 +1,162 @@
+package com.flowkode.hubldap;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import org.apache.directory.api.ldap.model.cursor.CursorException;
+import org.apache.directory.api.ldap.model.cursor.ListCursor;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.exception.LdapOtherException;
+import org.apache.directory.api.ldap.model.filter.AssertionType;
+import org.apache.directory.api.ldap.model.filter.BranchNode;
+import org.apache.directory.api.ldap.model.filter.ExprNode;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.server.core.api.entry.ClonedServerEntry;
+import org.apache.directory.server.core.api.filtering.EntryFilteringCursor;
+import org.apache.directory.server.core.api.filtering.EntryFilteringCursorImpl;
+import org.apache.directory.server.core.api.interceptor.context.SearchOperationContext;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Remembers the entries matched by a search on one snapshot, keyed by snapshot version, base, scope, alias handling and
+ * normalized filter, so a new snapshot never sees results of an older one.
+ * <p>
+ * Whole entries are cached and replayed through a fresh filtering cursor, which picks the requested attributes and
+ * applies access control per search, so the requested attributes are not part of the key.
+ */
+public class SearchCache {
+
+    //marks searches with more than maxResultSize entries, they always go to the partition
+    private static final List<Entry> TOO_LARGE = Collections.unmodifiableList(new ArrayList<>(0));
+
+    private final Cache<String, List<Entry>> cache;
+
+    private final int maxResultSize;
+
+    private final LongAdder hits;
+
+    private final LongAdder misses;
+
+    private final LongAdder uncacheable;
+
+    public interface Search {
+
+        EntryFilteringCursor run() throws LdapException;
+    }
+
+    /**
+     * @param maxEntries    entries held by all cached results together, {@code 0} disables the cache
+     * @param maxResultSize larger results are not cached
+     */
+    public SearchCache(long maxEntries, int maxResultSize, Metrics metrics) {
+        this.maxResultSize = maxResultSize;
+        cache = maxEntries > 0
+                ? Caffeine.newBuilder().maximumWeight(maxEntries).weigher((String k, List<Entry> v) -> Math.max(1, v.size())).build()
+                : null;
+        hits = metrics.counter("hubldap_search_cache_requests_total", "result", "hit");
+        misses = metrics.counter("hubldap_search_cache_requests_total", "result", "miss");
+        uncacheable = metrics.counter("hubldap_search_cache_requests_total", "result", "uncacheable");
+        if (cache != null) {
+            metrics.describe("hubldap_search_cache_requests_total", "Hub partition searches by cache result.");
+            metrics.describe("hubldap_search_cache_hit_ratio", "Share of cacheable searches answered from the cache.");
+            metrics.gauge("hubldap_search_cache_hit_ratio", () -> {
+                final long lookups = hits.sum() + misses.sum();
+                return lookups == 0 ? 0 : hits.sum() / (double) lookups;
+            });
+            metrics.describe("hubldap_search_cache_results", "Search results held by the cache.");
+            metrics.gauge("hubldap_search_cache_results", cache::estimatedSize);
+            metrics.describe("hubldap_search_cache_entries", "Entries referenced by cached results, what bounds the cache's memory.");
+            metrics.gauge("hubldap_search_cache_entries", () -> cache.policy().eviction().map(e -> e.weightedSize().orElse(0)).orElse(0L));
+        }
+    }
+
+    public EntryFilteringCursor search(long version, SearchOperationContext searchContext, SchemaManager schemaManager, Search search) throws LdapException {
+        if (cache == null) {
+            return search.run();
+        }
+        final String key = key(version, searchContext);
+        final List<Entry> cached = cache.getIfPresent(key);
+        if (cached == TOO_LARGE) {
+            uncacheable.increment();
+            return search.run();
+        }
+        if (cached != null) {
+            hits.increment();
+            return new EntryFilteringCursorImpl(new ListCursor<>(cached), searchContext, schemaManager);
+        }
+
+        misses.increment();
+        final List<Entry> entries = new ArrayList<>();
+        try (EntryFilteringCursor cursor = search.run()) {
+            while (cursor.next()) {
+                if (entries.size() >= maxResultSize) {
+                    cache.put(key, TOO_LARGE);
+                    return search.run();
+                }
+                final Entry entry = cursor.get();
+                entries.add(entry instanceof ClonedServerEntry ? ((ClonedServerEntry) entry).getOriginalEntry() : entry);
+            }
+        }
+        catch (CursorException | IOException e) {
+            throw new LdapOtherException("Could not read search results", e);
+        }
+        final List<Entry> result = Collections.unmodifiableList(entries);
+        cache.put(key, result);
+        return new EntryFilteringCursorImpl(new ListCursor<>(result), searchContext, schemaManager);
+    }
+
+    /**
+     * Drops every cached result, the version in the key already keeps stale results out, this frees their memory.
+     */
+    public void invalidateAll() {
+        if (cache != null) {
+            cache.invalidateAll();
+        }
+    }
+
+    private static String key(long version, SearchOperationContext searchContext) {
+        final StringBuilder key = new StringBuilder()
+                .append(version).append('|')
+                .append(searchContext.getDn().getNormName()).append('|')
+                .append(searchContext.getScope()).append('|')
+                .append(searchContext.getAliasDerefMode()).append('|');
+        appendFilter(key, searchContext.getFilter());
+        return key.toString();
+    }
+
+    //filters arrive normalized, only the order of and/or terms is left to make canonical
+    private static void appendFilter(StringBuilder key, ExprNode node) {
+        if (!(node instanceof BranchNode)) {
+            key.append(node);
+            return;
+        }
+        final List<String> children = new ArrayList<>();
+        for (ExprNode child : ((BranchNode) node).getChildren()) {
+            final StringBuilder childKey = new StringBuilder();
+            appendFilter(childKey, child);
+            children.add(childKey.toString());
+        }
+        if (node.getAssertionType() != AssertionType.NOT) {
+            Collections.sort(children);
+        }
+        key.append('(').append(operator(node.getAssertionType()));
+        children.forEach(key::append);
+        key.append(')');
+    }
+
+    private static char operator(AssertionType type) {
+        switch (type) {
+            case AND:
+                return '&';
+            case OR:
+                return '|';
+            default:
+                return '!';
+        }
+    }
+}
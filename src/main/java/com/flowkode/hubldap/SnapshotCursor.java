@@ -0,0 +1,167 @@
+package com.flowkode.hubldap;
+
+import org.apache.directory.api.ldap.model.cursor.ClosureMonitor;
+import org.apache.directory.api.ldap.model.cursor.CursorException;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.server.core.api.filtering.EntryFilter;
+import org.apache.directory.server.core.api.filtering.EntryFilteringCursor;
+import org.apache.directory.server.core.api.interceptor.context.SearchOperationContext;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Search cursor that keeps the snapshot it reads from alive until it is closed.
+ */
+public class SnapshotCursor implements EntryFilteringCursor {
+
+    private final EntryFilteringCursor wrapped;
+
+    private final Runnable release;
+
+    private final AtomicBoolean released = new AtomicBoolean();
+
+    public SnapshotCursor(EntryFilteringCursor wrapped, Runnable release) {
+        this.wrapped = wrapped;
+        this.release = release;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            wrapped.close();
+        }
+        finally {
+            release();
+        }
+    }
+
+    @Override
+    public void close(Exception reason) throws IOException {
+        try {
+            wrapped.close(reason);
+        }
+        finally {
+            release();
+        }
+    }
+
+    private void release() {
+        if (released.compareAndSet(false, true)) {
+            release.run();
+        }
+    }
+
+    @Override
+    public boolean addEntryFilter(EntryFilter filter) {
+        return wrapped.addEntryFilter(filter);
+    }
+
+    @Override
+    public List<EntryFilter> getEntryFilters() {
+        return wrapped.getEntryFilters();
+    }
+
+    @Override
+    public SearchOperationContext getOperationContext() {
+        return wrapped.getOperationContext();
+    }
+
+    @Override
+    public boolean available() {
+        return wrapped.available();
+    }
+
+    @Override
+    public void before(Entry element) throws LdapException, CursorException {
+        wrapped.before(element);
+    }
+
+    @Override
+    public void after(Entry element) throws LdapException, CursorException {
+        wrapped.after(element);
+    }
+
+    @Override
+    public void beforeFirst() throws LdapException, CursorException {
+        wrapped.beforeFirst();
+    }
+
+    @Override
+    public void afterLast() throws LdapException, CursorException {
+        wrapped.afterLast();
+    }
+
+    @Override
+    public boolean first() throws LdapException, CursorException {
+        return wrapped.first();
+    }
+
+    @Override
+    public boolean isFirst() {
+        return wrapped.isFirst();
+    }
+
+    @Override
+    public boolean isBeforeFirst() {
+        return wrapped.isBeforeFirst();
+    }
+
+    @Override
+    public boolean last() throws LdapException, CursorException {
+        return wrapped.last();
+    }
+
+    @Override
+    public boolean isLast() {
+        return wrapped.isLast();
+    }
+
+    @Override
+    public boolean isAfterLast() {
+        return wrapped.isAfterLast();
+    }
+
+    @Override
+    public boolean isClosed() {
+        return wrapped.isClosed();
+    }
+
+    @Override
+    public boolean previous() throws LdapException, CursorException {
+        return wrapped.previous();
+    }
+
+    @Override
+    public boolean next() throws LdapException, CursorException {
+        return wrapped.next();
+    }
+
+    @Override
+    public Entry get() throws CursorException {
+        return wrapped.get();
+    }
+
+    @Override
+    public void setClosureMonitor(ClosureMonitor monitor) {
+        wrapped.setClosureMonitor(monitor);
+    }
+
+    @Override
+    public Iterator<Entry> iterator() {
+        return wrapped.iterator();
+    }
+
+    @Override
+    public String toString(String tabs) {
+        return wrapped.toString(tabs);
+    }
+
+    @Override
+    public String toString() {
+        return wrapped.toString();
+    }
+}
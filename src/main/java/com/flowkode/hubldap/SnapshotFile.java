@@ -0,0 +1,204 @@
+package com.flowkode.hubldap;
+
+import org.apache.directory.api.ldap.model.entry.Attribute;
+import org.apache.directory.api.ldap.model.entry.DefaultEntry;
+import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.entry.Value;
+import org.apache.directory.api.ldap.model.exception.LdapException;
+import org.apache.directory.api.ldap.model.name.Dn;
+import org.apache.directory.api.ldap.model.schema.AttributeType;
+import org.apache.directory.api.ldap.model.schema.SchemaManager;
+import org.apache.directory.server.core.api.DnFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Binary copy of the last published snapshot, used to serve data right after a restart.
+ * <p>
+ * Layout: magic, format, snapshot version, suffix, entry count, entries, crc32 of everything before it.
+ */
+public class SnapshotFile {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SnapshotFile.class);
+
+    private static final int MAGIC = 0x48554253;
+
+    private static final int FORMAT = 1;
+
+    //guards against allocating garbage sizes from a damaged file
+    private static final int MAX_LENGTH = 16 * 1024 * 1024;
+
+    private final Path file;
+
+    private final SchemaManager schemaManager;
+
+    private final DnFactory dnFactory;
+
+    public SnapshotFile(Path file, SchemaManager schemaManager, DnFactory dnFactory) {
+        this.file = file;
+        this.schemaManager = schemaManager;
+        this.dnFactory = dnFactory;
+    }
+
+    public void write(Dn suffixDn, long version, Map<String, Entry> entries) {
+        final Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        final CRC32 crc = new CRC32();
+        try (DataOutputStream out = new DataOutputStream(new CheckedOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)), crc))) {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT);
+            out.writeLong(version);
+            writeString(out, suffixDn.getNormName());
+            out.writeInt(entries.size());
+            for (Entry entry : entries.values()) {
+                writeString(out, entry.getDn().getName());
+                out.writeInt(entry.size());
+                for (Attribute attribute : entry) {
+                    writeString(out, attribute.getUpId());
+                    out.writeInt(attribute.size());
+                    for (Value value : attribute) {
+                        out.writeBoolean(value.isHumanReadable());
+                        writeBytes(out, value.isHumanReadable() ? value.getString().getBytes(StandardCharsets.UTF_8) : value.getBytes());
+                    }
+                }
+            }
+            out.writeLong(crc.getValue());
+        }
+        catch (IOException e) {
+            LOGGER.warn("Could not write snapshot file " + file, e);
+            return;
+        }
+        try {
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (IOException e) {
+            LOGGER.warn("Could not replace snapshot file " + file, e);
+        }
+    }
+
+    /**
+     * @return the stored snapshot, or null when there is none or it can not be used, in which case it is deleted
+     */
+    public Contents read(Dn suffixDn) {
+        if (!Files.isRegularFile(file)) {
+            return null;
+        }
+        final long start = System.nanoTime();
+        final CRC32 crc = new CRC32();
+        try (DataInputStream in = new DataInputStream(new CheckedInputStream(new BufferedInputStream(Files.newInputStream(file)), crc))) {
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT) {
+                throw new IOException("Unknown snapshot format");
+            }
+            final long version = in.readLong();
+            if (!suffixDn.getNormName().equals(readString(in))) {
+                throw new IOException("Snapshot belongs to another root domain");
+            }
+            final int count = in.readInt();
+            final Map<String, Entry> entries = new HashMap<>();
+            final Map<String, AttributeType> attributeTypes = new HashMap<>();
+            //member, memberOf and objectClass values repeat across entries, each is normalized once and then shared
+            final Map<AttributeType, Map<String, Value>> sharedValues = new HashMap<>();
+            for (int i = 0; i < count; i++) {
+                final Entry entry = new DefaultEntry(schemaManager, dnFactory.create(readString(in)));
+                final int attributes = in.readInt();
+                for (int a = 0; a < attributes; a++) {
+                    final String upId = readString(in);
+                    final AttributeType attributeType = attributeTypes.computeIfAbsent(upId, schemaManager::getAttributeType);
+                    if (attributeType == null) {
+                        throw new IOException("Unknown attribute " + upId);
+                    }
+                    final Map<String, Value> shared = sharedValues.computeIfAbsent(attributeType, k -> new HashMap<>());
+                    final int values = in.readInt();
+                    for (int v = 0; v < values; v++) {
+                        if (in.readBoolean()) {
+                            final String string = new String(readBytes(in), StandardCharsets.UTF_8);
+                            Value value = shared.get(string);
+                            if (value == null) {
+                                value = new Value(attributeType, string);
+                                shared.put(string, value);
+                            }
+                            entry.add(upId, attributeType, value);
+                        }
+                        else {
+                            entry.add(upId, attributeType, readBytes(in));
+                        }
+                    }
+                }
+                entries.put(entry.getDn().getNormName(), entry);
+            }
+            final long expected = crc.getValue();
+            if (in.readLong() != expected) {
+                throw new IOException("Snapshot checksum mismatch");
+            }
+            LOGGER.info("Loaded snapshot version {} with {} entries in {} ms.", version, count, (System.nanoTime() - start) / 1_000_000);
+            return new Contents(version, entries);
+        }
+        catch (IOException | LdapException | RuntimeException e) {
+            LOGGER.warn("Discarding unusable snapshot file " + file + ": " + e.getMessage());
+            delete();
+            return null;
+        }
+    }
+
+    public void delete() {
+        try {
+            Files.deleteIfExists(file);
+        }
+        catch (IOException e) {
+            LOGGER.warn("Could not delete snapshot file " + file, e);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        writeBytes(out, value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return new String(readBytes(in), StandardCharsets.UTF_8);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        final int length = in.readInt();
+        if (length < 0 || length > MAX_LENGTH) {
+            throw new IOException("Invalid length " + length);
+        }
+        final byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    public static class Contents {
+
+        private final long version;
+
+        private final Map<String, Entry> entries;
+
+        private Contents(long version, Map<String, Entry> entries) {
+            this.version = version;
+            this.entries = entries;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        public Map<String, Entry> getEntries() {
+            return entries;
+        }
+    }
+}
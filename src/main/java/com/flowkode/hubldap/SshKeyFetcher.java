@@ -0,0 +1,102 @@
+package com.flowkode.hubldap;
+
+import com.flowkode.hubldap.data.SshKey;
+import com.flowkode.hubldap.data.SshKeysResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import retrofit2.Call;
+import retrofit2.Response;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+
+public class SshKeyFetcher {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SshKeyFetcher.class);
+
+    private static final int MAX_SSH_KEYS = 100;
+
+    private final HubClient hubClient;
+
+    private final HubTokenManager tokenManager;
+
+    private final ExecutorService executor;
+
+    private final long timeoutMillis;
+
+    public SshKeyFetcher(HubClient hubClient, HubTokenManager tokenManager, int concurrency, long timeoutMillis) {
+        this.hubClient = hubClient;
+        this.tokenManager = tokenManager;
+        this.timeoutMillis = timeoutMillis;
+
+        final AtomicInteger threadCount = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(concurrency, r -> {
+            final Thread thread = new Thread(r, "ssh-keys-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Fetches the keys of all given users in parallel, users whose keys could not be fetched in time are left out of the result.
+     */
+    public Map<String, Set<String>> fetch(Collection<String> userIds) {
+        final Map<String, AtomicReference<Call<?>>> calls = new LinkedHashMap<>();
+        final Map<String, Future<Set<String>>> futures = new HashMap<>();
+        for (String userId : userIds) {
+            final AtomicReference<Call<?>> call = new AtomicReference<>();
+            calls.put(userId, call);
+            futures.put(userId, executor.submit(() -> fetch(userId, call)));
+        }
+
+        final Map<String, Set<String>> keys = new HashMap<>();
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        for (Map.Entry<String, AtomicReference<Call<?>>> entry : calls.entrySet()) {
+            final String userId = entry.getKey();
+            final Future<Set<String>> future = futures.get(userId);
+            try {
+                keys.put(userId, future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS));
+            }
+            catch (TimeoutException e) {
+                future.cancel(true);
+                cancel(entry.getValue());
+                LOGGER.warn("Timed out fetching keys for user {}", userId);
+            }
+            catch (ExecutionException e) {
+                LOGGER.warn("Could not fetch keys for user {}: {}", userId, e.getCause().getMessage());
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                futures.values().forEach(f -> f.cancel(true));
+                calls.values().forEach(SshKeyFetcher::cancel);
+                break;
+            }
+        }
+        return keys;
+    }
+
+    private Set<String> fetch(String userId, AtomicReference<Call<?>> currentCall) throws IOException {
+        final Response<SshKeysResponse> response = tokenManager.execute(token -> {
+            final Call<SshKeysResponse> call = hubClient.getUserKeys(token, userId, 0, MAX_SSH_KEYS);
+            currentCall.set(call);
+            return call;
+        });
+        if (!response.isSuccessful()) {
+            throw new IOException("Got code " + response.code());
+        }
+        return Arrays.stream(response.body().getSshKeys())
+                     .map(SshKey::getOpenSshKey)
+                     .collect(Collectors.toSet());
+    }
+
+    private static void cancel(AtomicReference<Call<?>> call) {
+        final Call<?> current = call.get();
+        if (current != null) {
+            current.cancel();
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package com.flowkode.hubldap;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Stages of one sync connected by bounded queues of batches, each stage runs on its own threads and blocks once the
+ * next one falls behind.
+ * <p>
+ * A stage that fails keeps draining its input so nothing upstream stays blocked, {@link #await()} rethrows the first
+ * failure.
+ */
+public class SyncPipeline {
+
+    //end of input, every consumer that takes it puts it back for the other threads of its stage
+    private static final List<Object> END = new ArrayList<>(0);
+
+    private final ExecutorService executor;
+
+    private final Metrics metrics;
+
+    private final List<Future<?>> tasks = new ArrayList<>();
+
+    private final AtomicReference<Exception> failure = new AtomicReference<>();
+
+    //stage -> time spent working, summed over its threads
+    private final Map<String, LongAdder> busyNanos = new ConcurrentHashMap<>();
+
+    public interface Source<O> {
+
+        /**
+         * @return the next batch or {@code null} once there are no more
+         */
+        List<O> next() throws Exception;
+    }
+
+    public interface Work<I, O> {
+
+        List<O> apply(List<I> batch) throws Exception;
+    }
+
+    public SyncPipeline(Metrics metrics) {
+        this.metrics = metrics;
+        final AtomicInteger threadCount = new AtomicInteger();
+        executor = Executors.newCachedThreadPool(r -> {
+            final Thread thread = new Thread(r, "sync-pipeline-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        metrics.describe("hubldap_sync_queue_depth", "Batches waiting between sync pipeline stages.");
+        metrics.describe("hubldap_sync_stage_items_total", "Items processed by each sync pipeline stage.");
+    }
+
+    public <T> BlockingQueue<List<T>> queue(String name, int capacity) {
+        final BlockingQueue<List<T>> queue = new ArrayBlockingQueue<>(capacity);
+        metrics.gauge("hubldap_sync_queue_depth", queue::size, "queue", name);
+        return queue;
+    }
+
+    public <O> void source(String name, int threads, Source<O> source, BlockingQueue<List<O>> out) {
+        final AtomicInteger running = new AtomicInteger(threads);
+        for (int i = 0; i < threads; i++) {
+            tasks.add(executor.submit(() -> {
+                try {
+                    while (failure.get() == null) {
+                        final long start = System.nanoTime();
+                        final List<O> batch = source.next();
+                        if (batch == null) {
+                            break;
+                        }
+                        finished(name, start, batch.size());
+                        out.put(batch);
+                    }
+                }
+                catch (Exception e) {
+                    fail(e);
+                }
+                finally {
+                    if (running.decrementAndGet() == 0) {
+                        end(out);
+                    }
+                }
+            }));
+        }
+    }
+
+    /**
+     * Adds a stage that takes batches from {@code in}, a last stage passes {@code null} for {@code out}.
+     */
+    public <I, O> void stage(String name, int threads, BlockingQueue<List<I>> in, Work<I, O> work, BlockingQueue<List<O>> out) {
+        final AtomicInteger running = new AtomicInteger(threads);
+        for (int i = 0; i < threads; i++) {
+            tasks.add(executor.submit(() -> {
+                try {
+                    List<I> batch;
+                    while ((batch = in.take()) != END) {
+                        if (failure.get() != null) {
+                            continue;
+                        }
+                        final long start = System.nanoTime();
+                        try {
+                            final List<O> result = work.apply(batch);
+                            finished(name, start, batch.size());
+                            if (out != null) {
+                                out.put(result);
+                            }
+                        }
+                        catch (InterruptedException e) {
+                            throw e;
+                        }
+                        catch (Exception e) {
+                            fail(e);
+                        }
+                    }
+                    in.put(batch);
+                }
+                catch (InterruptedException e) {
+                    fail(e);
+                }
+                finally {
+                    if (running.decrementAndGet() == 0 && out != null) {
+                        end(out);
+                    }
+                }
+            }));
+        }
+    }
+
+    /**
+     * Waits for every stage to drain and adds their busy time to {@code stats}.
+     */
+    public void await(SyncStats stats) throws Exception {
+        try {
+            for (Future<?> task : tasks) {
+                task.get();
+            }
+        }
+        finally {
+            executor.shutdownNow();
+        }
+        busyNanos.forEach((stage, nanos) -> stats.addPhaseTime(stage, nanos.sum()));
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+    }
+
+    private void finished(String stage, long startNanos, int items) {
+        busyNanos.computeIfAbsent(stage, s -> new LongAdder()).add(System.nanoTime() - startNanos);
+        metrics.counter("hubldap_sync_stage_items_total", "stage", stage).add(items);
+    }
+
+    private void fail(Exception e) {
+        failure.compareAndSet(null, e);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> void end(BlockingQueue<List<T>> queue) {
+        try {
+            queue.put((List<T>) (List<?>) END);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
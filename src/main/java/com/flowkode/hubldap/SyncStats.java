@@ -0,0 +1,100 @@
+package com.flowkode.hubldap;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+public class SyncStats {
+
+    private final Map<String, Long> phaseNanos = new LinkedHashMap<>();
+
+    private int unchanged;
+
+    private int modified;
+
+    private int added;
+
+    private int removed;
+
+    private int groupWrites;
+
+    private long bytesReceived;
+
+    public void record(Directory.Change change) {
+        switch (change) {
+            case ADDED:
+                added++;
+                break;
+            case MODIFIED:
+                modified++;
+                break;
+            default:
+                unchanged++;
+        }
+    }
+
+    public void removed() {
+        removed++;
+    }
+
+    public void groupWritten() {
+        groupWrites++;
+    }
+
+    public void phaseFinished(String phase, long startNanos) {
+        addPhaseTime(phase, System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Adds to the time of a phase that runs in several pieces.
+     */
+    public void addPhaseTime(String phase, long nanos) {
+        phaseNanos.merge(phase, nanos, Long::sum);
+    }
+
+    public Map<String, Long> getPhaseNanos() {
+        return phaseNanos;
+    }
+
+    public Map<String, Long> getPhaseMillis() {
+        final Map<String, Long> phaseMillis = new LinkedHashMap<>();
+        phaseNanos.forEach((phase, nanos) -> phaseMillis.put(phase, TimeUnit.NANOSECONDS.toMillis(nanos)));
+        return phaseMillis;
+    }
+
+    public int getUnchanged() {
+        return unchanged;
+    }
+
+    public int getModified() {
+        return modified;
+    }
+
+    public int getAdded() {
+        return added;
+    }
+
+    public int getRemoved() {
+        return removed;
+    }
+
+    /**
+     * Group entries written, each one a single write carrying the whole member set.
+     */
+    public int getGroupWrites() {
+        return groupWrites;
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    public void setBytesReceived(long bytesReceived) {
+        this.bytesReceived = bytesReceived;
+    }
+
+    @Override
+    public String toString() {
+        return unchanged + " unchanged, " + modified + " modified, " + added + " added, " + removed + " removed, " + bytesReceived + " bytes received from Hub, phases (ms) " + getPhaseMillis();
+    }
+}
@@ -0,0 +1,155 @@
+package com.flowkode.hubldap;
+
+import com.flowkode.hubldap.data.UserRecord;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Consumer;
+
+/**
+ * Reads a page of {@link HubClient#USER_FIELDS} token by token and hands out one {@link UserRecord} per user as soon as
+ * it is complete, instead of binding the whole page to {@code User}, {@code Profile} and {@code UserGroup} objects.
+ * <p>
+ * One reader is meant to be used for a whole sync, group ids are shared across every user that has them.
+ */
+public class UserPageReader {
+
+    //a user in hundreds of transitive groups would otherwise carry hundreds of fresh copies of the same ids
+    private final ConcurrentMap<String, String> groupIds = new ConcurrentHashMap<>();
+
+    /**
+     * @return the total number of users reported by Hub
+     */
+    public int read(Reader json, Consumer<UserRecord> consumer) throws IOException {
+        int total = 0;
+        final List<String> groups = new ArrayList<>();
+        try (JsonReader reader = new JsonReader(json)) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                switch (reader.nextName()) {
+                    case "total":
+                        total = reader.nextInt();
+                        break;
+                    case "users":
+                        reader.beginArray();
+                        while (reader.hasNext()) {
+                            consumer.accept(readUser(reader, groups));
+                        }
+                        reader.endArray();
+                        break;
+                    default:
+                        reader.skipValue();
+                }
+            }
+            reader.endObject();
+        }
+        return total;
+    }
+
+    private UserRecord readUser(JsonReader reader, List<String> groups) throws IOException {
+        String id = null;
+        String name = null;
+        String login = null;
+        String email = "";
+        boolean banned = false;
+        groups.clear();
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "id":
+                    id = nextString(reader);
+                    break;
+                case "name":
+                    name = nextString(reader);
+                    break;
+                case "login":
+                    login = nextString(reader);
+                    break;
+                case "banned":
+                    banned = !skipNull(reader) && reader.nextBoolean();
+                    break;
+                case "profile":
+                    email = readEmail(reader);
+                    break;
+                case "transitiveGroups":
+                    readGroups(reader, groups);
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return new UserRecord(id, name, login, email, banned, groups.toArray(new String[0]));
+    }
+
+    //profile(email(email))
+    private static String readEmail(JsonReader reader) throws IOException {
+        String email = "";
+        if (skipNull(reader)) {
+            return email;
+        }
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (reader.nextName().equals("email") && !skipNull(reader)) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    if (reader.nextName().equals("email")) {
+                        final String value = nextString(reader);
+                        email = value != null ? value : "";
+                    }
+                    else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            }
+            else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return email;
+    }
+
+    private void readGroups(JsonReader reader, List<String> groups) throws IOException {
+        if (skipNull(reader)) {
+            return;
+        }
+        reader.beginArray();
+        while (reader.hasNext()) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (reader.nextName().equals("id")) {
+                    final String groupId = nextString(reader);
+                    if (groupId != null) {
+                        groups.add(groupIds.computeIfAbsent(groupId, g -> g));
+                    }
+                }
+                else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        }
+        reader.endArray();
+    }
+
+    private static String nextString(JsonReader reader) throws IOException {
+        return skipNull(reader) ? null : reader.nextString();
+    }
+
+    private static boolean skipNull(JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return true;
+        }
+        return false;
+    }
+}
@@ -7,11 +7,19 @@ public class AuthResponse {
     @SerializedName("access_token")
     private final String accessToken;
 
-    public AuthResponse(String accessToken) {
+    @SerializedName("expires_in")
+    private final long expiresIn;
+
+    public AuthResponse(String accessToken, long expiresIn) {
         this.accessToken = accessToken;
+        this.expiresIn = expiresIn;
     }
 
     public String getAccessToken() {
         return accessToken;
     }
+
+    public long getExpiresIn() {
+        return expiresIn;
+    }
 }
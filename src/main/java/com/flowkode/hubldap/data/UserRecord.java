@@ -0,0 +1,52 @@
+package com.flowkode.hubldap.data;
+
+/**
+ * What sync keeps of a Hub user, read straight off the JSON by {@code UserPageReader} without the {@link User} object graph.
+ */
+public class UserRecord {
+
+    private final String id;
+
+    private final String name;
+
+    private final String login;
+
+    private final String email;
+
+    private final boolean banned;
+
+    private final String[] groupIds;
+
+    public UserRecord(String id, String name, String login, String email, boolean banned, String[] groupIds) {
+        this.id = id;
+        this.name = name;
+        this.login = login;
+        this.email = email;
+        this.banned = banned;
+        this.groupIds = groupIds;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getLogin() {
+        return login;
+    }
+
+    public String getEmail() {
+        return email;
+    }
+
+    public boolean isBanned() {
+        return banned;
+    }
+
+    public String[] getGroupIds() {
+        return groupIds;
+    }
+}